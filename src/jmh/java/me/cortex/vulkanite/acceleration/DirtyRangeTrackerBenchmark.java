@@ -0,0 +1,62 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//One frame of the tlas instance uploads, a number of sections are rebuilt or removed (a structure reference update
+// and a swap with the last instance) and some are added at the end, then the dirty ranges are drained
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirtyRangeTrackerBenchmark {
+    private static final int FRAMES = 256;
+
+    //Live instances, around a 16 chunk render distance
+    @Param({"20000"})
+    public int instances;
+
+    //Sections touched per frame, steady state, moving around and a burst of rebuilds
+    @Param({"8", "64", "1024"})
+    public int churn;
+
+    private int[][] slots;
+    private boolean[][] swaps;
+    private DirtyRangeTracker tracker;
+    private int frame;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        var random = new Random(1);
+        slots = new int[FRAMES][churn];
+        swaps = new boolean[FRAMES][churn];
+        for (int f = 0; f < FRAMES; f++) {
+            for (int i = 0; i < churn; i++) {
+                slots[f][i] = random.nextInt(instances);
+                swaps[f][i] = random.nextInt(4) == 0;
+            }
+        }
+        tracker = new DirtyRangeTracker(16);
+        frame = 0;
+    }
+
+    @Benchmark
+    public long markAndDrain() {
+        int f = frame++ & (FRAMES - 1);
+        int count = instances;
+        for (int i = 0; i < churn; i++) {
+            tracker.mark(slots[f][i]);
+            if (swaps[f][i]) {
+                //A removal moves the last instance into the hole and the addition that follows writes the end again
+                tracker.mark(count - 1);
+            }
+        }
+        long[] uploaded = new long[1];
+        tracker.drain(count, (start, end) -> uploaded[0] += ((long) (end - start) << 32) | 1);
+        return uploaded[0];
+    }
+}
@@ -0,0 +1,77 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT16;
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT32;
+
+//Quad index generation as done when the shared index buffers grow, genQuadIdxs against writing every index on its own
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuadIndexBenchmark {
+    //A full 16 bit buffer and a large entity batch
+    @Param({"16384", "262144"})
+    public int quads;
+
+    private long ptr;
+
+    @Setup
+    public void setup() {
+        ptr = MemoryUtil.nmemAlloc(quads * 6L * Integer.BYTES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryUtil.nmemFree(ptr);
+    }
+
+    @Benchmark
+    public long generate16() {
+        SharedQuadVkIndexBuffer.genQuadIdxs(ptr, Math.min(quads, SharedQuadVkIndexBuffer.MAX_UINT16_QUADS), VK_INDEX_TYPE_UINT16);
+        return ptr;
+    }
+
+    @Benchmark
+    public long generate32() {
+        SharedQuadVkIndexBuffer.genQuadIdxs(ptr, quads, VK_INDEX_TYPE_UINT32);
+        return ptr;
+    }
+
+    @Benchmark
+    public long perIndex16() {
+        long p = ptr;
+        int count = Math.min(quads, SharedQuadVkIndexBuffer.MAX_UINT16_QUADS);
+        for (int i = 0; i < count * 4; i += 4) {
+            MemoryUtil.memPutShort(p, (short) i);
+            MemoryUtil.memPutShort(p + 2, (short) (i + 1));
+            MemoryUtil.memPutShort(p + 4, (short) (i + 2));
+            MemoryUtil.memPutShort(p + 6, (short) i);
+            MemoryUtil.memPutShort(p + 8, (short) (i + 2));
+            MemoryUtil.memPutShort(p + 10, (short) (i + 3));
+            p += 12;
+        }
+        return ptr;
+    }
+
+    @Benchmark
+    public long perIndex32() {
+        long p = ptr;
+        for (int i = 0; i < quads * 4; i += 4) {
+            MemoryUtil.memPutInt(p, i);
+            MemoryUtil.memPutInt(p + 4, i + 1);
+            MemoryUtil.memPutInt(p + 8, i + 2);
+            MemoryUtil.memPutInt(p + 12, i);
+            MemoryUtil.memPutInt(p + 16, i + 2);
+            MemoryUtil.memPutInt(p + 20, i + 3);
+            p += 24;
+        }
+        return ptr;
+    }
+}
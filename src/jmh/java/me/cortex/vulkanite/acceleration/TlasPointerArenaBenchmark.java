@@ -0,0 +1,89 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Section churn against the geometry arena the tlas manager uses (30000 entries), both allocators are first filled
+// to the given occupancy and then replay the same mix of frees and allocations of 1 to 12 geometries
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlasPointerArenaBenchmark {
+    private static final int ENTRIES = 30000;
+    private static final int OPS = 4096;
+
+    @Param({"0.5", "0.9"})
+    public double occupancy;
+
+    private int[] counts;
+    private int[] victims;
+
+    private TlasPointerArena arena;
+    private LinearScanArena linear;
+    private int[] arenaPos;
+    private int[] arenaCount;
+    private int[] linearPos;
+    private int[] linearCount;
+    private int live;
+    private int op;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        var random = new Random(42);
+        counts = new int[OPS];
+        victims = new int[OPS];
+        for (int i = 0; i < OPS; i++) {
+            counts[i] = 1 + random.nextInt(12);
+            victims[i] = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        arena = new TlasPointerArena(ENTRIES);
+        linear = new LinearScanArena(ENTRIES);
+        int target = (int) (ENTRIES * 3 * occupancy / 6.5);
+        arenaPos = new int[target];
+        arenaCount = new int[target];
+        linearPos = new int[target];
+        linearCount = new int[target];
+        for (live = 0; live < target; live++) {
+            int count = 1 + random.nextInt(12);
+            arenaPos[live] = arena.allocate(count);
+            arenaCount[live] = count;
+            linearPos[live] = linear.allocate(count);
+            linearCount[live] = count;
+        }
+        //Punch holes so that both start out fragmented
+        for (int i = 0; i < live; i += 3) {
+            arena.free(arenaPos[i], arenaCount[i]);
+            arenaPos[i] = arena.allocate(arenaCount[i]);
+            linear.free(linearPos[i], linearCount[i]);
+            linearPos[i] = linear.allocate(linearCount[i]);
+        }
+        op = 0;
+    }
+
+    //One section replaced: its range is freed and a range for the new geometry count is allocated
+    @Benchmark
+    public int bestFit() {
+        int i = op++ & (OPS - 1);
+        int victim = victims[i] % live;
+        arena.free(arenaPos[victim], arenaCount[victim]);
+        arenaCount[victim] = counts[i];
+        arenaPos[victim] = arena.allocate(counts[i]);
+        return arena.maxIndex;
+    }
+
+    @Benchmark
+    public int linearScan() {
+        int i = op++ & (OPS - 1);
+        int victim = victims[i] % live;
+        linear.free(linearPos[victim], linearCount[victim]);
+        linearCount[victim] = counts[i];
+        linearPos[victim] = linear.allocate(counts[i]);
+        return linear.maxIndex;
+    }
+}
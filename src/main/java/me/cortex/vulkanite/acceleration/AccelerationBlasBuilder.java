@@ -5,7 +5,11 @@ package me.cortex.vulkanite.acceleration;
 // then memory copies over to main, while doing compaction
 
 import me.cortex.vulkanite.client.Vulkanite;
+import me.cortex.vulkanite.compat.GeometryData;
+import me.cortex.vulkanite.compat.GeometryPart;
 import me.cortex.vulkanite.compat.IAccelerationBuildResult;
+import me.cortex.vulkanite.compat.QuadMerger;
+import me.cortex.vulkanite.compat.SodiumResultAdapter;
 import me.cortex.vulkanite.lib.base.VContext;
 import me.cortex.vulkanite.lib.base.VRef;
 import me.cortex.vulkanite.lib.base.VRegistry;
@@ -14,10 +18,12 @@ import me.cortex.vulkanite.lib.cmd.VCommandPool;
 import me.cortex.vulkanite.lib.descriptors.DescriptorSetLayoutBuilder;
 import me.cortex.vulkanite.lib.descriptors.VDescriptorSetLayout;
 import me.cortex.vulkanite.lib.memory.AccelerationStructurePool;
+import me.cortex.vulkanite.lib.memory.BufferArenaPool;
 import me.cortex.vulkanite.lib.memory.PoolLinearAllocator;
 import me.cortex.vulkanite.lib.memory.VAccelerationStructure;
 import me.cortex.vulkanite.lib.memory.VBuffer;
 import me.cortex.vulkanite.lib.other.VQueryPool;
+import me.cortex.vulkanite.lib.other.VUtil;
 import me.cortex.vulkanite.lib.other.sync.VFence;
 import me.cortex.vulkanite.lib.other.sync.VSemaphore;
 import me.cortex.vulkanite.lib.pipeline.ComputePipelineBuilder;
@@ -25,10 +31,11 @@ import me.cortex.vulkanite.lib.pipeline.VComputePipeline;
 import me.cortex.vulkanite.lib.shader.ShaderCompiler;
 import me.cortex.vulkanite.lib.shader.ShaderModule;
 import me.cortex.vulkanite.lib.shader.VShader;
+import me.jellysquid.mods.sodium.client.render.chunk.RenderSection;
 import me.jellysquid.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
-import me.jellysquid.mods.sodium.client.render.chunk.data.BuiltSectionMeshParts;
-import me.jellysquid.mods.sodium.client.render.chunk.terrain.DefaultTerrainRenderPasses;
+import me.jellysquid.mods.sodium.client.render.chunk.terrain.TerrainRenderPass;
 import me.jellysquid.mods.sodium.client.util.NativeBuffer;
+import net.minecraft.util.math.ChunkSectionPos;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
@@ -36,10 +43,15 @@ import org.lwjgl.vulkan.*;
 
 import java.nio.LongBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
 import static org.lwjgl.vulkan.KHRAccelerationStructure.*;
 import static org.lwjgl.vulkan.KHRBufferDeviceAddress.VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR;
 import static org.lwjgl.vulkan.VK10.*;
@@ -47,34 +59,221 @@ import static org.lwjgl.vulkan.VK12.*;
 
 public class AccelerationBlasBuilder {
     private final VContext context;
-    private record BLASTriangleData(int quadCount, int geometryFlags) {}
-    private record BLASBuildJob(List<BLASTriangleData> geometries, JobPassThroughData data) {}
-    public record BLASBuildResult(VRef<VAccelerationStructure> structure, JobPassThroughData data) {}
+    //positionOffset is where in the uploaded geometry the positions the blas is built from start, vertexStride is
+    // their stride, either the sodium vertices themselves or the merged quad positions that follow them
+    private record BLASTriangleData(int quadCount, int geometryFlags, long positionOffset, int vertexStride) {
+        //Everything a refit needs to be the same as in the build it updates, the position offset is not part of it
+        long layout() {
+            return (long) quadCount | (long) (geometryFlags & 0xFF) << 32 | (long) vertexStride << 40;
+        }
+    }
+    //uploadExecution is the async queue execution that uploads the geometry of the job, budgetBytes is what the job
+    // has charged against the ingest budget until it is built
+    private record BLASBuildJob(List<BLASTriangleData> geometries, JobPassThroughData data, long uploadExecution, long budgetBytes) {
+        long quadCount() {
+            long quads = 0;
+            for (var geometry : geometries) {
+                quads += geometry.quadCount;
+            }
+            return quads;
+        }
+
+        long[] layout() {
+            long[] layout = new long[geometries.size()];
+            for (int i = 0; i < layout.length; i++) {
+                layout[i] = geometries.get(i).layout();
+            }
+            return layout;
+        }
+    }
+    //The geometries, descriptor offsets and position hash of one detail level of a section
+    private record DetailLevel(List<BLASTriangleData> geometries, List<Long> bufferOffsets, long geometryHash) {}
+    //The section blas a group member was last sent to be built with, holds its own reference to the geometry
+    private record GroupMember(RenderSection section, long time, VRef<BufferArenaPool.ArenaAllocation> geometry,
+                               List<BLASTriangleData> geometries, List<Long> bufferOffsets, long uploadExecution) {}
+    //The members of a group of sections (see BlasGranularity) in one category, merged once none of them has changed
+    // for the merge delay, owned by the ingest worker
+    private static final class SectionGroup {
+        private final Map<ChunkSectionPos, GroupMember> members = new LinkedHashMap<>();
+        private long changed;
+        private boolean merged;
+    }
+    //A section whose uploaded geometry has both a full and a lod level, holds its own reference to the geometry so it
+    // can switch level after the outputs are gone
+    private static final class LodSection {
+        private final RenderSection section;
+        private final long time;
+        private final VRef<BufferArenaPool.ArenaAllocation> geometry;
+        private final GeometryRayFlags category;
+        private final int sectionCategories;
+        private final DetailLevel full;
+        private final DetailLevel lod;
+        private boolean usingLod;
+        private long uploadExecution;
+
+        private LodSection(RenderSection section, long time, VRef<BufferArenaPool.ArenaAllocation> geometry, GeometryRayFlags category,
+                           int sectionCategories, DetailLevel full, DetailLevel lod, boolean usingLod) {
+            this.section = section;
+            this.time = time;
+            this.geometry = geometry;
+            this.category = category;
+            this.sectionCategories = sectionCategories;
+            this.full = full;
+            this.lod = lod;
+            this.usingLod = usingLod;
+        }
+    }
+    //refitSource is the structure a refit updates from, null unless decision is REFIT
+    private record SizedBLASBuildJob(BLASBuildJob job, long structureSize, long scratchSize, BlasRefitPolicy.Decision decision,
+                                     VRef<VAccelerationStructure> refitSource) {}
+    //A batch whose build has been submitted but whose compaction has not been recorded yet
+    private record InFlightBatch(List<SizedBLASBuildJob> jobs, List<VRef<VAccelerationStructure>> structures, int queryBase,
+                                 long buildExecution, AccelerationStats.BlasBatch sizes, long startTime) {}
+    //A batch whose build has finished and whose compacted sizes have been read back
+    private record BuiltBatch(InFlightBatch batch, long[] compactedSizes) {}
+    //A result without a structure asks to reuse the current blas of the section as only the geometry attributes changed,
+    // if the section no longer has a blas with the same geometry hash, rebuild has to be run to build one after all
+    //For the blas of a group, rebuild has to be run if the members changed before it was applied so that the group is
+    // merged again once it is stable
+    public record BLASBuildResult(VRef<VAccelerationStructure> structure, JobPassThroughData data, Runnable rebuild) {
+        public BLASBuildResult(VRef<VAccelerationStructure> structure, JobPassThroughData data) {
+            this(structure, data, null);
+        }
+
+        public boolean isReuse() {
+            return structure == null;
+        }
+    }
     public record BLASBatchResult(List<BLASBuildResult> results, long execution) { }
+    //Produced in deferred compaction mode, compacted replaces source wherever source is still in use
+    public record BLASCompactionResult(VRef<VAccelerationStructure> source, VRef<VAccelerationStructure> compacted, JobPassThroughData data) {}
+    public record BLASCompactionBatch(List<BLASCompactionResult> results, long execution) { }
+
+    private static final int MAX_BATCH_JOBS = 1024;
+    //Number of batches that can be building at once, each one owns a separate range of the query pool
+    private static final int MAX_IN_FLIGHT_BATCHES = 3;
+    private static final int QUERY_POOL_SIZE = MAX_BATCH_JOBS * MAX_IN_FLIGHT_BATCHES;
+    //In deferred compaction mode, compaction is forced once this many built batches are waiting on it
+    private static final int MAX_DEFERRED_COMPACTIONS = 8;
+    private static final long VERTEX_STRIDE = 4 * 3;
+    //inAddr, outAddr, vertex count and input stride of every geometry decoded by the single decode dispatch of a batch
+    private static final int DECODE_JOB_SIZE = 8 * 3;
+    //Upper bound on the workgroups decoding a single geometry, larger geometries are looped over
+    private static final int MAX_DECODE_GROUPS = 64;
+    //The unorm value v is v / 65535 while sodium decodes positions as v * (32 / 65536) - 8, the difference is folded
+    // into the scale of the position transform
+    private static final int DIRECT_VERTEX_FORMAT = VK_FORMAT_R16G16B16A16_UNORM;
+    private static final float DIRECT_POSITION_SCALE = 32.0f * 65535.0f / 65536.0f;
+    private static final float DIRECT_POSITION_OFFSET = -8.0f;
+    //Each terrain pass is bound as its own storage buffer descriptor so needs to be aligned for that
+    private static final long GEOMETRY_ALIGNMENT = 256;
+    private static final long MERGED_POSITION_ALIGNMENT = 16;
+    //Blocks past the lod distance a section has to be to switch level, and the camera movement between lod updates
+    private static final double LOD_HYSTERESIS = 16;
+    private static final double LOD_UPDATE_DISTANCE = 16;
+    //Longest the ingest worker sleeps without collecting the objects that were freed on it
+    private static final long INGEST_COLLECT_INTERVAL_MS = 100;
+    //Kept well below the minimum maxStorageBufferRange as descriptors are bound to the end of the arena
+    private static final long GEOMETRY_ARENA_SIZE = 64L << 20;
+    private static final int BLAS_BUILD_FLAGS = VK_BUILD_ACCELERATION_STRUCTURE_PREFER_FAST_TRACE_BIT_KHR | VK_BUILD_ACCELERATION_STRUCTURE_ALLOW_COMPACTION_BIT_KHR;
 
     private final int asyncQueue;
     private final Consumer<BLASBatchResult> resultConsumer;
+    private final Consumer<BLASCompactionBatch> compactionConsumer;
+    private final boolean deferredCompaction = AccelerationConfig.BLAS_DEFERRED_COMPACTION;
+    private final AccelerationStats stats;
+    //Builds read the positions straight from the uploaded geometry with positionTransform applying the decode,
+    // otherwise the positions are decoded into a temporary float buffer with a compute pass
+    private final boolean directPositions;
+    private final VRef<VBuffer> positionTransform;
+    //Structures already built for some section, looked up from the ingest worker
+    private final BlasContentCache<?, ?> contentCache;
 
     private final VRef<VQueryPool> queryPool;
 
     //TODO: maybe move to an executor type system
-    private final Semaphore awaitingJobBatchess = new Semaphore(0);//Note: this is done to avoid spin locking on the job consumer
-    private final ConcurrentLinkedDeque<List<BLASBuildJob>> batchedJobs = new ConcurrentLinkedDeque<>();
+    private final Semaphore awaitingJobs = new Semaphore(0);//Note: this is done to avoid spin locking on the job consumer
+    private final BlasJobScheduler<BlasKey, BLASBuildJob> pendingJobs = new BlasJobScheduler<>(AccelerationConfig.BLAS_AGING_RATE, 8);
+    private final LinkedBlockingQueue<List<ChunkBuildOutput>> ingestQueue = new LinkedBlockingQueue<>();
+    //Geometry hash of the last job of each section blas that was sent to be built
+    private final Map<BlasKey, Long> builtHashes = new ConcurrentHashMap<>();
+    private final BlasIngestBudget ingestBudget = new BlasIngestBudget(AccelerationConfig.BLAS_INGEST_BUDGET_BYTES);
+    private final BlasBatchPolicy batchPolicy = new BlasBatchPolicy(AccelerationConfig.BLAS_BATCH_MAX_QUADS,
+            AccelerationConfig.BLAS_BATCH_MAX_BYTES, MAX_BATCH_JOBS);
+    private final BlasRefitPolicy<BlasKey, VAccelerationStructure> refitPolicy = new BlasRefitPolicy<>(AccelerationConfig.BLAS_MAX_REFITS,
+            AccelerationConfig.BLAS_REFIT_WINDOW_MS * 1_000_000, AccelerationConfig.BLAS_MAX_REFIT_SOURCES);
 
     private final VRef<VComputePipeline> gpuVertexDecodePipeline;
 
+    //Section blas's with a lod, with the geometry of both levels
+    private final Map<BlasKey, LodSection> lodSections = new ConcurrentHashMap<>();
+    private final AtomicBoolean lodUpdateRequested = new AtomicBoolean();
+    private final BlasGranularity granularity = AccelerationConfig.BLAS_GRANULARITY;
+    //Keyed by the merged blas key of the group
+    private final Map<BlasKey, SectionGroup> groups = new HashMap<>();
+    //Section blas's that are gone and groups whose merged blas was rejected, from other threads
+    private final ConcurrentLinkedQueue<BlasKey> removedGroupMembers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<BlasKey> rejectedGroups = new ConcurrentLinkedQueue<>();
+    //Rebuilds that did not fit in the ingest budget, the ingest worker waits for the budget and queues them
+    private final ConcurrentLinkedQueue<BLASBuildJob> deferredRebuilds = new ConcurrentLinkedQueue<>();
+    private volatile double cameraX, cameraY, cameraZ;
+
+    //Jobs closer to the camera are built first, sections with a lod switch level once the camera has moved enough
+    public void setCameraPosition(double x, double y, double z) {
+        pendingJobs.setCamera(x, y, z);
+        cameraX = x;
+        cameraY = y;
+        cameraZ = z;
+        double dx = x - lodCameraX, dy = y - lodCameraY, dz = z - lodCameraZ;
+        if (!lodSections.isEmpty() && dx * dx + dy * dy + dz * dz >= LOD_UPDATE_DISTANCE * LOD_UPDATE_DISTANCE
+                && lodUpdateRequested.compareAndSet(false, true)) {
+            //Wakes up the ingest worker
+            ingestQueue.add(List.of());
+        }
+    }
+
     public int getAsyncQueue() {
         return asyncQueue;
     }
 
     private final AccelerationStructurePool accelerationStructurePool;
+    private final BufferArenaPool geometryPool;
+
+    //Owned by the ingest worker
+    private long hostScratch = 0;
+    private long hostScratchSize = 0;
+    private double lodCameraX, lodCameraY, lodCameraZ;
+
+    //Owned by the worker thread
+    private PoolLinearAllocator buildBufferAllocator;
+    private PoolLinearAllocator scratchAllocator;
+    private PoolLinearAllocator initialASBufferAllocator;
 
-    public AccelerationBlasBuilder(VContext context, int asyncQueue, Consumer<BLASBatchResult> resultConsumer) {
-        this.queryPool = VQueryPool.create(context.device, 10000, VK_QUERY_TYPE_ACCELERATION_STRUCTURE_COMPACTED_SIZE_KHR);
+    AccelerationBlasBuilder(VContext context, int asyncQueue, AccelerationStats stats, BlasContentCache<?, ?> contentCache,
+                            Consumer<BLASBatchResult> resultConsumer, Consumer<BLASCompactionBatch> compactionConsumer) {
+        this.queryPool = VQueryPool.create(context.device, QUERY_POOL_SIZE, VK_QUERY_TYPE_ACCELERATION_STRUCTURE_COMPACTED_SIZE_KHR);
         this.context = context;
         this.asyncQueue = asyncQueue;
+        this.stats = stats;
+        stats.trackIngestBudget(ingestBudget);
+        stats.trackContentCache(contentCache);
+        this.contentCache = contentCache;
         this.resultConsumer = resultConsumer;
+        this.compactionConsumer = compactionConsumer;
         this.accelerationStructurePool = new AccelerationStructurePool(context);
+        this.geometryPool = new BufferArenaPool(context.memory,
+                VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT
+                        | VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR,
+                GEOMETRY_ARENA_SIZE, GEOMETRY_ALIGNMENT, "Terrain geometry arena");
+
+        this.directPositions = AccelerationConfig.BLAS_DIRECT_POSITIONS
+                && context.properties.isAccelerationStructureVertexFormat(DIRECT_VERTEX_FORMAT);
+        if (directPositions) {
+            positionTransform = createPositionTransform(context);
+        } else {
+            positionTransform = null;
+        }
+        stats.setBlasPositionSource(directPositions);
 
         var decodeShader = VShader.compileLoad(context, """
                         #version 460
@@ -85,41 +284,38 @@ public class AccelerationBlasBuilder {
                                         
                         layout (local_size_x = 256, local_size_y = 1, local_size_z = 1) in;
                                         
-                        struct InputVertex {
+                        layout(buffer_reference, std430, buffer_reference_align = 8) readonly buffer InputPosition {
                             u16vec4 position;
-                            u8vec4 color;
-                            u16vec2 blockTexture;
-                            u16vec2 lightTexture;
-                            u16vec2 midTexCoord;
-                            i8vec4 tangent;
-                            i8vec3 normal;
-                            int8_t padA__;
-                            i16vec2 blockId;
-                            i8vec3 midBlock;
-                            int8_t padB__;
-                        };
-                        
-                        layout(buffer_reference, std430) buffer InputVertices {
-                            InputVertex vertices[];
                         };
                         
                         layout(buffer_reference, std430) buffer OutputVertices {
                             float vertices[];
                         };
                         
-                        layout(push_constant) uniform PushConstants {
-                            uint64_t nVertices;
+                        struct DecodeJob {
                             uint64_t inAddr;
                             uint64_t outAddr;
+                            uint32_t nVertices;
+                            uint32_t inStride;
                         };
-                                        
+                        
+                        layout(buffer_reference, std430) readonly buffer DecodeJobs {
+                            DecodeJob jobs[];
+                        };
+                        
+                        layout(push_constant) uniform PushConstants {
+                            uint64_t jobsAddr;
+                        };
+                        
+                        // Every row of workgroups (y) decodes one geometry of the batch
                         void main() {
+                            DecodeJob job = DecodeJobs(jobsAddr).jobs[gl_WorkGroupID.y];
                             uint32_t idx = gl_GlobalInvocationID.x;
                             uint32_t gridSize = gl_NumWorkGroups.x * gl_WorkGroupSize.x;
-                            InputVertices inputs = InputVertices(inAddr);
-                            OutputVertices outputs = OutputVertices(outAddr);
-                            for (idx; idx < uint32_t(nVertices); idx += gridSize) {
-                                vec3 position = vec3(inputs.vertices[idx].position.xyz) * (32.0 / 65536.0) - 8.0;
+                            OutputVertices outputs = OutputVertices(job.outAddr);
+                            for (idx; idx < job.nVertices; idx += gridSize) {
+                                u16vec4 encoded = InputPosition(job.inAddr + uint64_t(idx) * job.inStride).position;
+                                vec3 position = vec3(encoded.xyz) * (32.0 / 65536.0) - 8.0;
                                 outputs.vertices[idx * 3 + 0] = position.x;
                                 outputs.vertices[idx * 3 + 1] = position.y;
                                 outputs.vertices[idx * 3 + 2] = position.z;
@@ -129,328 +325,1209 @@ public class AccelerationBlasBuilder {
                 VK_SHADER_STAGE_COMPUTE_BIT);
 
         var decodePipeBuilder = new ComputePipelineBuilder();
-        decodePipeBuilder.addPushConstantRange(8 * 3, 0);
+        decodePipeBuilder.addPushConstantRange(8, 0);
         decodePipeBuilder.set(decodeShader.get().named());
         gpuVertexDecodePipeline = decodePipeBuilder.build(context);
 
         Thread worker = new Thread(this::run);
         worker.setName("Acceleration blas worker");
         worker.start();
+
+        Thread ingestWorker = new Thread(this::runIngest);
+        ingestWorker.setName("Acceleration geometry ingest worker");
+        ingestWorker.start();
+    }
+
+    private static VRef<VBuffer> createPositionTransform(VContext context) {
+        var buffer = context.memory.createBuffer(VkTransformMatrixKHR.SIZEOF,
+                VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                16, VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
+        buffer.get().setDebugUtilsObjectName("BLAS Position Transform");
+        long ptr = buffer.get().map();
+        writeTransform(ptr, DIRECT_POSITION_SCALE, DIRECT_POSITION_OFFSET, 0, 0, 0);
+        buffer.get().unmap();
+        return buffer;
     }
 
-    //The acceleration manager blas builder runs in batches/groups
+    //Writes a 3x4 row major transform that scales by scale and then translates by offset + (x, y, z)
+    private static void writeTransform(long ptr, float scale, float offset, float x, float y, float z) {
+        float[] matrix = {
+                scale, 0, 0, offset + x,
+                0, scale, 0, offset + y,
+                0, 0, scale, offset + z,
+        };
+        for (int i = 0; i < matrix.length; i++) {
+            MemoryUtil.memPutFloat(ptr + i * 4L, matrix[i]);
+        }
+    }
+
+    //The transform of a geometry, transformAddress is the per geometry transform of group blas's and 0 otherwise
+    //The size query only checks whether this is null, so it is given a placeholder address for group blas's
+    private VkDeviceOrHostAddressConstKHR transformData(MemoryStack stack, long transformAddress) {
+        var address = VkDeviceOrHostAddressConstKHR.calloc(stack);
+        if (transformAddress != 0) {
+            address.deviceAddress(transformAddress);
+        } else if (directPositions) {
+            address.deviceAddress(positionTransform.get().deviceAddress());
+        }
+        return address;
+    }
+
+    //Bytes of temporary decoded vertices a build of this many quads needs
+    private long decodedInputBytes(long quads) {
+        return directPositions ? 0 : quads * 4 * VERTEX_STRIDE;
+    }
+
+    //The acceleration manager blas builder runs in batches/groups, the batches are pipelined so that the next batch
+    // is recorded and submitted while the previous one is still building on the async queue, once a build is seen
+    // as completed its compacted sizes are read back without waiting and the compaction copy is submitted behind it
+    //In deferred compaction mode the uncompacted structures are published as soon as the build is submitted and
+    // compaction only runs when there is nothing new to build
     private void run() {
         MemoryStack bigStack = MemoryStack.create(20_000_000);
 
-        var buildBufferAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT
+        buildBufferAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_STORAGE_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT
                 | VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR
                 | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT, 0x200_0000L, 16);
-        var scratchAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
+        scratchAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 0x200_0000L, 256);
-        var initialASBufferAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_STORAGE_BIT_KHR | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR,
+        initialASBufferAllocator = new PoolLinearAllocator(context, VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_STORAGE_BIT_KHR | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR,
                 0x200_0000L, 256);
 
-        List<BLASBuildJob> jobs = new ArrayList<>();
+        Deque<InFlightBatch> inFlight = new ArrayDeque<>(MAX_IN_FLIGHT_BATCHES);
+        Deque<BuiltBatch> built = new ArrayDeque<>();
         Deque<Long> priorExecutions = new ArrayDeque<>(3);
+        int querySlot = 0;
         while (true) {
-            {
-                jobs.clear();
-                try {
-                    awaitingJobBatchess.acquire();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-                int i = -1;
-                //Collect the job batch
-                while (!this.batchedJobs.isEmpty() && jobs.size() < 32) {
-                    i++;
-                    jobs.addAll(this.batchedJobs.poll());
+            VRegistry.INSTANCE.threadLocalCollect();
+
+            //Read back the compacted sizes of every batch whose build has already finished, this never blocks
+            // and frees up the query range of the batch
+            long completed = context.cmd.getQueueCurrentExecution(asyncQueue);
+            while (!inFlight.isEmpty() && inFlight.peek().buildExecution <= completed) {
+                var batch = inFlight.poll();
+                //The build has completed so the query results are available, no need to wait on them
+                long[] compactedSizes = queryPool.get().getResultsLong(batch.queryBase, batch.jobs.size(), 0);
+                built.add(new BuiltBatch(batch, compactedSizes));
+
+                //The decoded build input is done with, the geometry is now owned by the published results
+                long budgetBytes = 0;
+                for (var job : batch.jobs) {
+                    budgetBytes += job.job.budgetBytes;
                 }
-                if (i > 0) {
-                    //This updates the semaphore to be accurate, should be able to grab exactly i permits (number of batches)
-                    try {
-                        awaitingJobBatchess.acquire(i);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
+                ingestBudget.release(budgetBytes);
+
+                var sizes = batch.sizes;
+                stats.onBlasBatch(new AccelerationStats.BlasBatch(sizes.jobs(), sizes.quads(), sizes.scratchBytes(),
+                        sizes.structureBytes(), sizes.inputBytes(), System.nanoTime() - batch.startTime));
+            }
+
+            if (!deferredCompaction) {
+                compactBuilt(bigStack, built, priorExecutions, 0);
+            }
+
+            //Only block waiting for new jobs if there is nothing on the gpu to wait for
+            boolean recorded = false;
+            if (inFlight.size() < MAX_IN_FLIGHT_BATCHES) {
+                List<SizedBLASBuildJob> jobs = new ArrayList<>();
+                if (collectBatch(bigStack, jobs, inFlight.isEmpty() && built.isEmpty())) {
+                    inFlight.add(recordBuild(bigStack, jobs, querySlot * MAX_BATCH_JOBS));
+                    querySlot = (querySlot + 1) % MAX_IN_FLIGHT_BATCHES;
+                    recorded = true;
                 }
             }
 
-            VRegistry.INSTANCE.threadLocalCollect();
+            if (deferredCompaction) {
+                //Compaction is low priority, it only gets to run when no new batch was recorded
+                compactBuilt(bigStack, built, priorExecutions, recorded ? MAX_DEFERRED_COMPACTIONS : 0);
+            }
 
-            var sinlgeUsePoolWorker = context.cmd.getSingleUsePool();
+            if (recorded) {
+                continue;
+            }
 
-            //Jobs are batched and built on the async vulkan queue then block synchronized with fence
-            // which then results in compaction and dispatch to consumer
+            //Nothing new to record, sleep until the oldest build is done
+            if (!inFlight.isEmpty()) {
+                context.cmd.hostWaitForExecution(asyncQueue, inFlight.peek().buildExecution);
+            }
+        }
+    }
 
-            //TODO: clean up this spaghetti shithole
-            try (var stack = bigStack.push()) {
-                var buildInfos = VkAccelerationStructureBuildGeometryInfoKHR.calloc(jobs.size(), stack);
-                PointerBuffer buildRanges = stack.mallocPointer(jobs.size());
-                LongBuffer pAccelerationStructures = stack.mallocLong(jobs.size());
+    //Records the decode of a whole batch as a single dispatch with one row of workgroups per geometry, followed by
+    // one barrier that makes all the decoded vertices visible to the builds
+    private void recordDecode(MemoryStack stack, VCmdBuff cmd, long decodeJobs, int decodeJobCount, long maxVertices) {
+        if (decodeJobCount > 65535) {
+            throw new IllegalStateException("Too many geometries in a single decode dispatch: " + decodeJobCount);
+        }
+        long tableSize = (long) decodeJobCount * DECODE_JOB_SIZE;
+        var table = buildBufferAllocator.allocate(tableSize);
+        cmd.encodeDataUpload(context.upload, decodeJobs, table.buffer(), table.offset(), tableSize);
+
+        try (var frame = stack.push()) {
+            //The geometry inputs and the table were written by copies earlier on this queue, and the build buffers
+            // may have been read by the builds of a batch that used the same range before
+            vkCmdPipelineBarrier(cmd.buffer(), VK_PIPELINE_STAGE_TRANSFER_BIT | VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR,
+                    VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT, 0,
+                    VkMemoryBarrier.calloc(1, frame).sType$Default()
+                            .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                            .dstAccessMask(VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT), null, null);
+
+            cmd.bindCompute(gpuVertexDecodePipeline);
+            cmd.pushConstants(0, new long[]{table.deviceAddress()});
+            cmd.dispatch((int) Math.min((maxVertices + 255) / 256, MAX_DECODE_GROUPS), decodeJobCount, 1);
+
+            vkCmdPipelineBarrier(cmd.buffer(), VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+                    VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR, 0,
+                    VkMemoryBarrier.calloc(1, frame).sType$Default()
+                            .srcAccessMask(VK_ACCESS_SHADER_WRITE_BIT)
+                            .dstAccessMask(VK_ACCESS_SHADER_READ_BIT), null, null);
+        }
+    }
 
-                var accelerationStructures = new ArrayList<VRef<VAccelerationStructure>>(jobs.size());
+    //Compacts built batches until at most keep are left waiting
+    private void compactBuilt(MemoryStack bigStack, Deque<BuiltBatch> built, Deque<Long> priorExecutions, int keep) {
+        while (built.size() > keep) {
+            long blasExecution = compact(bigStack, built.poll());
+            priorExecutions.add(blasExecution);
+            if (priorExecutions.size() > 3) {
+                long prior = priorExecutions.poll();
+                context.cmd.hostWaitForExecution(asyncQueue, prior);
+            }
+        }
+    }
 
-                var uploadBuildCmdRef = sinlgeUsePoolWorker.createCommandBuffer();
-                var uploadBuildCmd = uploadBuildCmdRef.get();
+    //Records and submits the decode + build of a batch, the compacted size of every structure is written into the
+    // query range starting at queryBase
+    private InFlightBatch recordBuild(MemoryStack bigStack, List<SizedBLASBuildJob> jobs, int queryBase) {
+        long batchStart = System.nanoTime();
+        var sizes = new AccelerationStats.BlasBatch(batchPolicy.jobs(), batchPolicy.quads(),
+                batchPolicy.scratchBytes(), batchPolicy.structureBytes(), batchPolicy.inputBytes(), 0);
 
-                //Fill in the buildInfo and buildRanges
-                int i = -1;
-                uploadBuildCmd.bindCompute(gpuVertexDecodePipeline);
+        var sinlgeUsePoolWorker = context.cmd.getSingleUsePool();
 
-                for (var job : jobs) {
-                    i++;
-                    var brs = VkAccelerationStructureBuildRangeInfoKHR.calloc(job.geometries.size(), stack);
-                    var geometryInfos = VkAccelerationStructureGeometryKHR.calloc(job.geometries.size(), stack);
-                    var maxPrims = stack.callocInt(job.geometries.size());
-                    buildRanges.put(brs);
+        //TODO: clean up this spaghetti shithole
+        try (var stack = bigStack.push()) {
+            var buildInfos = VkAccelerationStructureBuildGeometryInfoKHR.calloc(jobs.size(), stack);
+            PointerBuffer buildRanges = stack.mallocPointer(jobs.size());
+            LongBuffer pAccelerationStructures = stack.mallocLong(jobs.size());
 
-                    long vertexStride = 4 * 3;
+            var accelerationStructures = new ArrayList<VRef<VAccelerationStructure>>(jobs.size());
 
-                    for (int geoIdx = 0; geoIdx < job.geometries.size(); geoIdx++) {
-                        var geometry = job.geometries.get(geoIdx);
-                        //TODO: Fill in geometryInfo, maxPrims and buildRangeInfo
-                        var geometryInfo = geometryInfos.get().sType$Default();
-                        var br = brs.get();
+            var uploadBuildCmdRef = sinlgeUsePoolWorker.createCommandBuffer();
+            var uploadBuildCmd = uploadBuildCmdRef.get();
 
-                        long buildBufferSize = geometry.quadCount * 4L * vertexStride;
-                        var buildBuffer = buildBufferAllocator.allocate(buildBufferSize);
+            long uploadExecution = 0;
+            boolean hasRefits = false;
+            for (var sizedJob : jobs) {
+                uploadExecution = Math.max(uploadExecution, sizedJob.job.uploadExecution);
+                hasRefits |= sizedJob.refitSource != null;
+            }
 
-                        uploadBuildCmd.encodeBufferBarrier(buildBuffer.buffer(), buildBuffer.offset(), buildBuffer.size(), VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT,
-                                VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT);
-
-                        // We know the geometry data has been uploaded
-                        // 0: n_vertices
-                        // 1: inAddr
-                        // 2: outAddr
-                        var pushConstant = new long[3];
-                        var geometryInputBuffer = job.data.geometryBuffer();
-                        var geometryInputBufferOffset = job.data.bufferOffsets().get(geoIdx);
-                        pushConstant[0] = geometry.quadCount * 4L;
-                        pushConstant[1] = geometryInputBuffer.get().deviceAddress() + geometryInputBufferOffset;
-                        pushConstant[2] = buildBuffer.deviceAddress();
-                        if (pushConstant[1] == 0) {
-                            throw new IllegalStateException("Geometry input buffer address is 0");
-                        }
-                        if (pushConstant[2] == 0) {
-                            throw new IllegalStateException("Build buffer address is 0");
-                        }
-                        uploadBuildCmd.pushConstants(0, pushConstant);
-                        uploadBuildCmd.encodeBufferBarrier(geometryInputBuffer, 0, VK_WHOLE_SIZE, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT,
-                                VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT);
-                        uploadBuildCmd.dispatch(Math.min((geometry.quadCount * 4 + 255) / 256, 256), 1, 1);
+            //Fill in the buildInfo and buildRanges
+            int i = -1;
+            if (directPositions) {
+                uploadBuildCmd.addBufferRef(positionTransform);
+            }
 
-                        uploadBuildCmd.encodeBufferBarrier(buildBuffer.buffer(), buildBuffer.offset(), buildBuffer.size(), VK_PIPELINE_STAGE_TRANSFER_BIT,
-                                VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR);
+            //In decode mode the decode of every geometry is gathered into a table and done by one dispatch
+            int geometryCount = 0;
+            for (var sizedJob : jobs) {
+                geometryCount += sizedJob.job.geometries.size();
+            }
+            long decodeJobs = directPositions ? 0 : stack.nmalloc(8, geometryCount * DECODE_JOB_SIZE);
+            int decodeJobCount = 0;
+            long maxDecodeVertices = 0;
 
-                        var indexBuffer = SharedQuadVkIndexBuffer.getIndexBuffer(context,
-                                uploadBuildCmd,
-                                Integer.max(geometry.quadCount, 30000));
-                        VkDeviceOrHostAddressConstKHR indexData = indexBuffer.get().deviceAddressConst();
-                        int indexType = SharedQuadVkIndexBuffer.TYPE;
+            for (var sizedJob : jobs) {
+                var job = sizedJob.job;
+                i++;
+                var brs = VkAccelerationStructureBuildRangeInfoKHR.calloc(job.geometries.size(), stack);
+                var geometryInfos = VkAccelerationStructureGeometryKHR.calloc(job.geometries.size(), stack);
+                buildRanges.put(brs);
+
+                var geometryInputs = geometryInputs(job);
+                long transforms = job.data.group() == null ? 0 : uploadGroupTransforms(stack, uploadBuildCmd, job);
+
+                for (int geoIdx = 0; geoIdx < job.geometries.size(); geoIdx++) {
+                    var geometry = job.geometries.get(geoIdx);
+                    var geometryInfo = geometryInfos.get().sType$Default();
+                    var br = brs.get();
+
+                    var geometryInput = geometryInputs.get(geoIdx).get();
+                    long geometryInputAddress = geometryInput.deviceAddress() + geometry.positionOffset;
+                    if (geometryInputAddress == 0) {
+                        throw new IllegalStateException("Geometry input buffer address is 0");
+                    }
 
-                        uploadBuildCmd.addBufferRef(indexBuffer);
+                    VkDeviceOrHostAddressConstKHR vertexData;
+                    int vertexFormat;
+                    long vertexStride;
+                    if (directPositions) {
+                        vertexData = VkDeviceOrHostAddressConstKHR.calloc(stack).deviceAddress(geometryInputAddress);
+                        vertexFormat = DIRECT_VERTEX_FORMAT;
+                        vertexStride = geometry.vertexStride;
+                    } else {
+                        long buildBufferSize = geometry.quadCount * 4L * VERTEX_STRIDE;
+                        var buildBuffer = buildBufferAllocator.allocate(buildBufferSize);
+                        //The allocator can roll over to a new buffer while this batch is still in flight
+                        uploadBuildCmd.addBufferRef(buildBuffer.buffer());
+                        if (buildBuffer.deviceAddress() == 0) {
+                            throw new IllegalStateException("Build buffer address is 0");
+                        }
+
+                        long decodeJob = decodeJobs + (long) decodeJobCount++ * DECODE_JOB_SIZE;
+                        MemoryUtil.memPutLong(decodeJob, geometryInputAddress);
+                        MemoryUtil.memPutLong(decodeJob + 8, buildBuffer.deviceAddress());
+                        MemoryUtil.memPutInt(decodeJob + 16, geometry.quadCount * 4);
+                        MemoryUtil.memPutInt(decodeJob + 20, geometry.vertexStride);
+                        maxDecodeVertices = Math.max(maxDecodeVertices, geometry.quadCount * 4L);
 
-                        VkDeviceOrHostAddressConstKHR vertexData = VkDeviceOrHostAddressConstKHR.calloc(stack)
+                        vertexData = VkDeviceOrHostAddressConstKHR.calloc(stack)
                                 .deviceAddress(buildBuffer.deviceAddress());
-                        int vertexFormat = VK_FORMAT_R32G32B32_SFLOAT;
+                        vertexFormat = VK_FORMAT_R32G32B32_SFLOAT;
+                        vertexStride = VERTEX_STRIDE;
+                    }
 
-                        geometryInfo.geometry(VkAccelerationStructureGeometryDataKHR.calloc(stack)
-                                .triangles(VkAccelerationStructureGeometryTrianglesDataKHR.calloc(stack)
-                                        .sType$Default()
+                    //The 16 bit buffer is small enough to always be made at its full size
+                    int indexType = SharedQuadVkIndexBuffer.indexType(geometry.quadCount);
+                    var indexBuffer = SharedQuadVkIndexBuffer.getIndexBuffer(context,
+                            uploadBuildCmd,
+                            indexType == VK_INDEX_TYPE_UINT16 ? SharedQuadVkIndexBuffer.MAX_UINT16_QUADS : geometry.quadCount,
+                            indexType);
+                    VkDeviceOrHostAddressConstKHR indexData = indexBuffer.get().deviceAddressConst();
 
-                                        .vertexData(vertexData)
-                                        .vertexFormat(vertexFormat)
-                                        .vertexStride(vertexStride)
-                                        .maxVertex(geometry.quadCount * 4)
+                    uploadBuildCmd.addBufferRef(indexBuffer);
 
-                                        .indexData(indexData)
-                                        .indexType(indexType)))
-                                .geometryType(VK_GEOMETRY_TYPE_TRIANGLES_KHR)
-                                .flags(geometry.geometryFlags);
+                    geometryInfo.geometry(VkAccelerationStructureGeometryDataKHR.calloc(stack)
+                            .triangles(VkAccelerationStructureGeometryTrianglesDataKHR.calloc(stack)
+                                    .sType$Default()
 
-                        maxPrims.put(geometry.quadCount * 2);
-                        br.primitiveCount(geometry.quadCount * 2);
-                        //maxPrims.put(2);
-                        //br.primitiveCount(2);
-                    }
+                                    .vertexData(vertexData)
+                                    .vertexFormat(vertexFormat)
+                                    .vertexStride(vertexStride)
+                                    .maxVertex(geometry.quadCount * 4)
 
+                                    .indexData(indexData)
+                                    .indexType(indexType)
+                                    .transformData(transformData(stack, transforms == 0 ? 0 : transforms + (long) geoIdx * VkTransformMatrixKHR.SIZEOF))))
+                            .geometryType(VK_GEOMETRY_TYPE_TRIANGLES_KHR)
+                            .flags(geometry.geometryFlags);
+
+                    br.primitiveCount(geometry.quadCount * 2);
+                }
 
-                    geometryInfos.rewind();
-                    maxPrims.rewind();
 
-                    var bi = buildInfos.get()
-                            .sType$Default()
-                            .type(VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR)
-                            .flags(VK_BUILD_ACCELERATION_STRUCTURE_PREFER_FAST_TRACE_BIT_KHR | VK_BUILD_ACCELERATION_STRUCTURE_ALLOW_COMPACTION_BIT_KHR)
-                            .pGeometries(geometryInfos)
-                            .geometryCount(job.geometries.size());
+                geometryInfos.rewind();
+
+                var bi = buildInfos.get()
+                        .sType$Default()
+                        .type(VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR)
+                        .flags(buildFlags(sizedJob.decision))
+                        .pGeometries(geometryInfos)
+                        .geometryCount(job.geometries.size());
+                if (sizedJob.refitSource != null) {
+                    //Updated out of place, the source may still be traced by frames in flight or shared by other sections
+                    bi.mode(VK_BUILD_ACCELERATION_STRUCTURE_MODE_UPDATE_KHR)
+                            .srcAccelerationStructure(sizedJob.refitSource.get().structure);
+                    uploadBuildCmd.addAccelerationStructureRef(sizedJob.refitSource);
+                    sizedJob.refitSource.close();
+                }
 
-                    VkAccelerationStructureBuildSizesInfoKHR buildSizesInfo = VkAccelerationStructureBuildSizesInfoKHR
-                            .calloc(stack)
-                            .sType$Default();
+                // Sizes were already queried when the batch was formed
+                var backingBuffer = initialASBufferAllocator.allocate(sizedJob.structureSize);
+                var structure = context.memory.createAcceleration(backingBuffer.buffer(), backingBuffer.offset(), backingBuffer.size(), VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR);
 
-                    vkGetAccelerationStructureBuildSizesKHR(
-                            context.device,
-                            VK_ACCELERATION_STRUCTURE_BUILD_TYPE_DEVICE_KHR,
-                            bi,
-                            maxPrims,
-                            buildSizesInfo);
+                var scratch = scratchAllocator.allocate(sizedJob.scratchSize);
+                uploadBuildCmd.addBufferRef(scratch.buffer());
+                bi.scratchData(VkDeviceOrHostAddressKHR.calloc(stack).deviceAddress(scratch.deviceAddress()));
+                bi.dstAccelerationStructure(structure.get().structure);
 
+                pAccelerationStructures.put(structure.get().structure);
 
-                    var backingBuffer = initialASBufferAllocator.allocate(buildSizesInfo.accelerationStructureSize());
-                    var structure = context.memory.createAcceleration(backingBuffer.buffer(), backingBuffer.offset(), backingBuffer.size(), VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR);
+                accelerationStructures.add(structure);
+                if (!job.data.section().isDisposed()) {
+                    refitPolicy.built(job.data.key(), job.layout(), sizedJob.decision, structure, batchStart);
+                }
+            }
 
-                    var scratch = scratchAllocator.allocate(buildSizesInfo.buildScratchSize());
-                    uploadBuildCmd.addBufferRef(scratch.buffer());
-                    bi.scratchData(VkDeviceOrHostAddressKHR.calloc(stack).deviceAddress(scratch.deviceAddress()));
-                    bi.dstAccelerationStructure(structure.get().structure);
+            buildInfos.rewind();
+            buildRanges.rewind();
+            pAccelerationStructures.rewind();
 
-                    pAccelerationStructures.put(structure.get().structure);
+            if (decodeJobCount != 0) {
+                recordDecode(stack, uploadBuildCmd, decodeJobs, decodeJobCount, maxDecodeVertices);
+            }
+            //The index buffer and group transform uploads recorded above are copies read by the builds in both modes,
+            // and without decode the builds also read the positions straight out of the uploaded geometry
+            try (var frame = stack.push()) {
+                vkCmdPipelineBarrier(uploadBuildCmd.buffer(), VK_PIPELINE_STAGE_TRANSFER_BIT,
+                        VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR, 0,
+                        VkMemoryBarrier.calloc(1, frame).sType$Default()
+                                .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                                .dstAccessMask(VK_ACCESS_SHADER_READ_BIT), null, null);
+            }
 
-                    accelerationStructures.add(structure);
+            if (hasRefits) {
+                //Refits read structures built or compacted by earlier submissions on this queue
+                try (var frame = stack.push()) {
+                    vkCmdPipelineBarrier(uploadBuildCmd.buffer(), VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR,
+                            VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR, 0,
+                            VkMemoryBarrier.calloc(1, frame).sType$Default()
+                                    .srcAccessMask(VK_ACCESS_ACCELERATION_STRUCTURE_WRITE_BIT_KHR)
+                                    .dstAccessMask(VK_ACCESS_ACCELERATION_STRUCTURE_READ_BIT_KHR), null, null);
                 }
+            }
 
-                buildInfos.rewind();
-                buildRanges.rewind();
-                pAccelerationStructures.rewind();
-
-                {
-                    vkCmdBuildAccelerationStructuresKHR(uploadBuildCmd.buffer(), buildInfos, buildRanges);
+            vkCmdBuildAccelerationStructuresKHR(uploadBuildCmd.buffer(), buildInfos, buildRanges);
 
-                    //TODO: should probably do memory barrier to read access
-                    uploadBuildCmd.encodeMemoryBarrier();
+            //TODO: should probably do memory barrier to read access
+            uploadBuildCmd.encodeMemoryBarrier();
 
-                    uploadBuildCmd.resetQueryPool(queryPool, 0, jobs.size());
-                    vkCmdWriteAccelerationStructuresPropertiesKHR(
-                            uploadBuildCmd.buffer(),
-                            pAccelerationStructures,
-                            VK_QUERY_TYPE_ACCELERATION_STRUCTURE_COMPACTED_SIZE_KHR,
-                            queryPool.get().pool,
-                            0);
+            uploadBuildCmd.resetQueryPool(queryPool, queryBase, jobs.size());
+            vkCmdWriteAccelerationStructuresPropertiesKHR(
+                    uploadBuildCmd.buffer(),
+                    pAccelerationStructures,
+                    VK_QUERY_TYPE_ACCELERATION_STRUCTURE_COMPACTED_SIZE_KHR,
+                    queryPool.get().pool,
+                    queryBase);
 
-                    long buildExecution = context.cmd.submit(asyncQueue, uploadBuildCmdRef);
+            //The geometry uploads were submitted by the ingest worker without waiting on them
+            long buildExecution = context.cmd.submit(asyncQueue, uploadBuildCmdRef, asyncQueue, uploadExecution);
+            uploadBuildCmdRef.close();
 
-                    // Waiting on a semaphore is realistically the easiest thing to do rn
-                    context.cmd.hostWaitForExecution(asyncQueue, buildExecution);
-                    uploadBuildCmdRef.close();
+            if (deferredCompaction) {
+                //Publish the uncompacted structures straight away, the batch keeps its own reference for compaction
+                List<BLASBuildResult> results = new ArrayList<>(jobs.size());
+                for (int idx = 0; idx < jobs.size(); idx++) {
+                    results.add(builtResult(accelerationStructures.get(idx).addRef(), jobs.get(idx).job.data));
                 }
+                resultConsumer.accept(new BLASBatchResult(results, buildExecution));
+            }
 
-                long[] compactedSizes = queryPool.get().getResultsLong(jobs.size());
-
-                List<BLASBuildResult> results = new ArrayList<>();
+            return new InFlightBatch(jobs, accelerationStructures, queryBase, buildExecution, sizes, batchStart);
+        }
+    }
 
-                //vkDeviceWaitIdle(context.device);
+    //Records and submits the compaction copy of a batch whose build has completed, then hands the compacted
+    // structures to the consumer, returns the execution of the copy
+    private long compact(MemoryStack bigStack, BuiltBatch builtBatch) {
+        var batch = builtBatch.batch;
+        long[] compactedSizes = builtBatch.compactedSizes;
+
+        List<BLASBuildResult> results = new ArrayList<>(batch.jobs.size());
+        List<BLASCompactionResult> compactions = new ArrayList<>(batch.jobs.size());
+
+        long blasExecution;
+        try (var stack = bigStack.push()) {
+            var cmdRef = context.cmd.getSingleUsePool().createCommandBuffer();
+
+            for (int idx = 0; idx < compactedSizes.length; idx++) {
+                var compact_as = accelerationStructurePool.createAcceleration(compactedSizes[idx], VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR);
+                var fat_as = batch.structures.get(idx);
+
+                vkCmdCopyAccelerationStructureKHR(cmdRef.get().buffer(), VkCopyAccelerationStructureInfoKHR.calloc(stack).sType$Default()
+                        .src(fat_as.get().structure)
+                        .dst(compact_as.get().structure)
+                        .mode(VK_COPY_ACCELERATION_STRUCTURE_MODE_COMPACT_KHR));
+
+                cmdRef.get().addAccelerationStructureRef(fat_as);
+                cmdRef.get().addAccelerationStructureRef(compact_as);
+
+                var job = batch.jobs.get(idx).job;
+                refitPolicy.compacted(job.data.key(), fat_as.get(), compact_as);
+                if (deferredCompaction) {
+                    //Ownership of the batch reference to the uncompacted structure moves to the compaction result
+                    compactions.add(new BLASCompactionResult(fat_as, compact_as, job.data));
+                } else {
+                    fat_as.close();
+                    results.add(builtResult(compact_as, job.data));
+                }
+            }
 
-                //---------------------
-                long blasExecution = 0;
-                {
-                    var cmdRef = sinlgeUsePoolWorker.createCommandBuffer();
+            //Chain the copy behind the build on the timeline, this also makes the build writes visible to the copy
+            blasExecution = context.cmd.submit(asyncQueue, cmdRef, asyncQueue, batch.buildExecution);
+            cmdRef.close();
+        }
 
-                    // Dont need a memory barrier cause submit ensures cache flushing already
-                    for (int idx = 0; idx < compactedSizes.length; idx++) {
-                        var compact_as = accelerationStructurePool.createAcceleration(compactedSizes[idx], VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR);
-                        var fat_as = accelerationStructures.get(idx);
+        if (deferredCompaction) {
+            compactionConsumer.accept(new BLASCompactionBatch(compactions, blasExecution));
+        } else {
+            resultConsumer.accept(new BLASBatchResult(results, blasExecution));
+        }
+        return blasExecution;
+    }
 
-                        vkCmdCopyAccelerationStructureKHR(cmdRef.get().buffer(), VkCopyAccelerationStructureInfoKHR.calloc(stack).sType$Default()
-                                .src(fat_as.get().structure)
-                                .dst(compact_as.get().structure)
-                                .mode(VK_COPY_ACCELERATION_STRUCTURE_MODE_COMPACT_KHR));
+    private BLASBuildResult builtResult(VRef<VAccelerationStructure> structure, JobPassThroughData data) {
+        if (data.group() == null) {
+            return new BLASBuildResult(structure, data);
+        }
+        var key = data.key();
+        return new BLASBuildResult(structure, data, () -> {
+            rejectedGroups.add(key);
+            ingestQueue.add(List.of());
+        });
+    }
 
-                        cmdRef.get().addAccelerationStructureRef(fat_as);
-                        cmdRef.get().addAccelerationStructureRef(compact_as);
-                        fat_as.close();
+    //The geometry allocation every geometry of the job is read from
+    private static List<VRef<BufferArenaPool.ArenaAllocation>> geometryInputs(BLASBuildJob job) {
+        var group = job.data.group();
+        if (group == null) {
+            return Collections.nCopies(job.geometries.size(), job.data.geometry());
+        }
+        List<VRef<BufferArenaPool.ArenaAllocation>> inputs = new ArrayList<>(job.geometries.size());
+        for (var member : group.members()) {
+            for (int i = 0; i < member.bufferOffsets().size(); i++) {
+                inputs.add(member.geometry());
+            }
+        }
+        return inputs;
+    }
 
-                        var job = jobs.get(idx);
-                        results.add(new BLASBuildResult(compact_as, job.data));
+    //Uploads the transforms of the geometries of a group job, which move every member to its place in the group,
+    // returns the device address of the first one
+    private long uploadGroupTransforms(MemoryStack stack, VCmdBuff cmd, BLASBuildJob job) {
+        var group = job.data.group();
+        long size = (long) job.geometries.size() * VkTransformMatrixKHR.SIZEOF;
+        try (var frame = stack.push()) {
+            long transforms = frame.nmalloc(16, (int) size);
+            int geometry = 0;
+            for (var member : group.members()) {
+                var section = member.section().getPosition();
+                float x = (section.getSectionX() - group.origin().getSectionX()) * 16;
+                float y = (section.getSectionY() - group.origin().getSectionY()) * 16;
+                float z = (section.getSectionZ() - group.origin().getSectionZ()) * 16;
+                for (int i = 0; i < member.bufferOffsets().size(); i++) {
+                    long ptr = transforms + (long) geometry++ * VkTransformMatrixKHR.SIZEOF;
+                    if (directPositions) {
+                        writeTransform(ptr, DIRECT_POSITION_SCALE, DIRECT_POSITION_OFFSET, x, y, z);
+                    } else {
+                        writeTransform(ptr, 1, 0, x, y, z);
                     }
+                }
+            }
+            var table = buildBufferAllocator.allocate(size);
+            cmd.addBufferRef(table.buffer());
+            cmd.encodeDataUpload(context.upload, transforms, table.buffer(), table.offset(), size);
+            return table.deviceAddress();
+        }
+    }
 
-                    blasExecution = context.cmd.submit(asyncQueue, cmdRef);
-                    cmdRef.close();
+    //Fills the batch according to the batch policy, if block is set waits until at least one job is available,
+    // otherwise returns false when there are no jobs
+    private boolean collectBatch(MemoryStack stack, List<SizedBLASBuildJob> batch, boolean block) {
+        batchPolicy.reset();
+        if (block) {
+            try {
+                awaitingJobs.acquire();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        } else if (!awaitingJobs.tryAcquire()) {
+            return false;
+        }
+        while (true) {
+            //Holding a permit guarantees there is a job in the queue
+            var entry = pendingJobs.poll();
+            var job = entry.job();
+            var sized = sizeJob(stack, job);
+            long quads = job.quadCount();
+            if (!batchPolicy.tryAdd(quads, sized.scratchSize, sized.structureSize, decodedInputBytes(quads))) {
+                if (sized.refitSource != null) {
+                    sized.refitSource.close();
+                }
+                //Doesnt fit, put it back so it is first in line for the next batch, unless the section was rebuilt
+                // while it was out of the queue
+                if (pendingJobs.requeue(entry)) {
+                    awaitingJobs.release();
+                } else {
+                    drop(job);
                 }
+                break;
+            }
+            stats.onBlasJobDequeued(System.nanoTime() - entry.enqueueTime());
+            stats.setBlasQueueDepth(pendingJobs.size());
+            if (sized.decision == BlasRefitPolicy.Decision.REFIT) {
+                stats.onBlasRefits(1);
+            }
+            batch.add(sized);
+            if (batchPolicy.isFull() || !awaitingJobs.tryAcquire()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    //A refit has to use the flags of the build it updates, which is always an updatable one
+    private static int buildFlags(BlasRefitPolicy.Decision decision) {
+        return decision == BlasRefitPolicy.Decision.BUILD ? BLAS_BUILD_FLAGS : BLAS_BUILD_FLAGS | VK_BUILD_ACCELERATION_STRUCTURE_ALLOW_UPDATE_BIT_KHR;
+    }
 
-                accelerationStructures.forEach(VRef::close);
+    //Decides between a refit and a build and queries the sizes of the job, only the geometry descriptions matter for
+    // this so the vertex and index addresses are left out
+    private SizedBLASBuildJob sizeJob(MemoryStack stack, BLASBuildJob job) {
+        var decision = refitPolicy.decide(job.data.key(), job.layout(), System.nanoTime());
+        try (var frame = stack.push()) {
+            var geometryInfos = VkAccelerationStructureGeometryKHR.calloc(job.geometries.size(), frame);
+            var maxPrims = frame.callocInt(job.geometries.size());
+            for (var geometry : job.geometries) {
+                geometryInfos.get().sType$Default()
+                        .geometry(VkAccelerationStructureGeometryDataKHR.calloc(frame)
+                                .triangles(VkAccelerationStructureGeometryTrianglesDataKHR.calloc(frame)
+                                        .sType$Default()
+                                        .vertexFormat(directPositions ? DIRECT_VERTEX_FORMAT : VK_FORMAT_R32G32B32_SFLOAT)
+                                        .vertexStride(directPositions ? geometry.vertexStride : VERTEX_STRIDE)
+                                        .maxVertex(geometry.quadCount * 4)
+                                        .indexType(SharedQuadVkIndexBuffer.indexType(geometry.quadCount))
+                                        .transformData(transformData(frame, job.data.group() == null ? 0 : 1))))
+                        .geometryType(VK_GEOMETRY_TYPE_TRIANGLES_KHR)
+                        .flags(geometry.geometryFlags);
+                maxPrims.put(geometry.quadCount * 2);
+            }
+            geometryInfos.rewind();
+            maxPrims.rewind();
+
+            var bi = VkAccelerationStructureBuildGeometryInfoKHR.calloc(frame)
+                    .sType$Default()
+                    .type(VK_ACCELERATION_STRUCTURE_TYPE_BOTTOM_LEVEL_KHR)
+                    .flags(buildFlags(decision))
+                    .pGeometries(geometryInfos)
+                    .geometryCount(job.geometries.size());
+
+            var buildSizesInfo = VkAccelerationStructureBuildSizesInfoKHR
+                    .calloc(frame)
+                    .sType$Default();
+
+            vkGetAccelerationStructureBuildSizesKHR(
+                    context.device,
+                    VK_ACCELERATION_STRUCTURE_BUILD_TYPE_DEVICE_KHR,
+                    bi,
+                    maxPrims,
+                    buildSizesInfo);
+
+            //The same geometry description gives the same structure size, so a refit can write a structure of it
+            if (decision == BlasRefitPolicy.Decision.REFIT) {
+                return new SizedBLASBuildJob(job, buildSizesInfo.accelerationStructureSize(), buildSizesInfo.updateScratchSize(),
+                        decision, refitPolicy.source(job.data.key()));
+            }
+            return new SizedBLASBuildJob(job, buildSizesInfo.accelerationStructureSize(), buildSizesInfo.buildScratchSize(), decision, null);
+        }
+    }
 
-                resultConsumer.accept(new BLASBatchResult(results, blasExecution));
+    // Enqueues jobs of section blas builds, the outputs are handed to the ingest worker which uploads the geometry
+    // and deletes the outputs once their vertex data has been staged
+    // This never blocks, when the ingest budget is used up the outputs wait here without any device memory
+    // NOTE: This is on a different thread!
+    public void enqueue(List<ChunkBuildOutput> batch) {
+        ingestQueue.add(batch);
+    }
 
-                priorExecutions.add(blasExecution);
-                if (priorExecutions.size() > 3) {
-                    long prior = priorExecutions.poll();
-                    context.cmd.hostWaitForExecution(asyncQueue, prior);
+    private void runIngest() {
+        while (true) {
+            List<ChunkBuildOutput> batch;
+            try {
+                //Groups waiting to be merged need the worker to wake up once they are due
+                long nextMerge = mergeGroups();
+                //Arena ranges and staging closed on this thread are only freed by collecting, so it cant sleep
+                // indefinitely while they are still counted as in use
+                long timeout = TimeUnit.MILLISECONDS.toNanos(INGEST_COLLECT_INTERVAL_MS);
+                batch = ingestQueue.poll(nextMerge == -1 ? timeout : Math.min(nextMerge, timeout), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (batch == null) {
+                VRegistry.INSTANCE.threadLocalCollect();
+                continue;
+            }
+            //Take everything else that is waiting as well so that superseded builds can be dropped before uploading
+            List<List<ChunkBuildOutput>> waiting = new ArrayList<>();
+            ingestQueue.drainTo(waiting);
+            if (!waiting.isEmpty()) {
+                batch = new ArrayList<>(batch);
+                for (var more : waiting) {
+                    batch.addAll(more);
                 }
             }
+            VRegistry.INSTANCE.threadLocalCollect();
+            ingest(coalesce(batch));
+            updateLods();
+            scheduleDeferredRebuilds();
         }
     }
 
+    //A section blas was sent to be built or reused, its group has to be split until it is stable again
+    private void groupMemberChanged(BLASBuildJob job) {
+        var data = job.data;
+        var origin = granularity.group(data.section().getPosition());
+        if (origin == null) {
+            return;
+        }
+        var group = groups.computeIfAbsent(new BlasKey(origin, data.category(), true), k -> new SectionGroup());
+        var previous = group.members.put(data.section().getPosition(), new GroupMember(data.section(), data.time(), data.geometry().addRef(),
+                job.geometries, data.bufferOffsets(), job.uploadExecution));
+        if (previous != null) {
+            previous.geometry.close();
+        }
+        group.changed = System.nanoTime();
+        group.merged = false;
+    }
 
-    // Enqueues jobs of section blas builds
-    // NOTE: This is on a different thread!
-    public void enqueue(List<ChunkBuildOutput> batch) {
-        var cmd = context.cmd.getSingleUsePool().createCommandBuffer();
-        boolean hasJobs = false;
+    //Queues a merged blas for every group that has not changed for the merge delay, returns the nanoseconds until the
+    // next group is due, or -1 if no group is waiting to be merged
+    private long mergeGroups() {
+        long now = System.nanoTime();
+        BlasKey key;
+        while ((key = removedGroupMembers.poll()) != null) {
+            var groupKey = new BlasKey(granularity.group(key.position()), key.category(), true);
+            var group = groups.get(groupKey);
+            if (group == null) {
+                continue;
+            }
+            var member = group.members.remove(key.position());
+            if (member != null) {
+                member.geometry.close();
+                group.changed = now;
+                group.merged = false;
+            }
+            if (group.members.isEmpty()) {
+                groups.remove(groupKey);
+                refitPolicy.forget(groupKey);
+            }
+        }
+        while ((key = rejectedGroups.poll()) != null) {
+            var group = groups.get(key);
+            if (group != null && group.merged) {
+                group.changed = now;
+                group.merged = false;
+            }
+        }
+
+        long delay = AccelerationConfig.BLAS_MERGE_DELAY_MS * 1_000_000;
+        long nextDue = -1;
+        int merged = 0;
+        List<BLASBuildJob> jobs = new ArrayList<>();
+        for (var entry : groups.entrySet()) {
+            var group = entry.getValue();
+            if (group.merged || group.members.size() < 2) {
+                continue;
+            }
+            long due = group.changed + delay - now;
+            if (due > 0) {
+                nextDue = nextDue == -1 ? due : Math.min(nextDue, due);
+                continue;
+            }
+            group.merged = true;
+
+            List<BLASTriangleData> geometries = new ArrayList<>();
+            List<Long> bufferOffsets = new ArrayList<>();
+            List<BlasGroup.Member> members = new ArrayList<>(group.members.size());
+            long time = 0;
+            long uploadExecution = 0;
+            for (var member : group.members.values()) {
+                geometries.addAll(member.geometries);
+                bufferOffsets.addAll(member.bufferOffsets);
+                members.add(new BlasGroup.Member(member.section, member.time, member.geometry.addRef(), member.bufferOffsets));
+                time = Math.max(time, member.time);
+                uploadExecution = Math.max(uploadExecution, member.uploadExecution);
+            }
+            var groupKey = entry.getKey();
+            var data = new JobPassThroughData(members.get(0).section(), time, null, bufferOffsets, 0, groupKey.category(), 0,
+                    new BlasGroup(groupKey.position(), members));
+            long quads = 0;
+            for (var geometry : geometries) {
+                quads += geometry.quadCount;
+            }
+            long budgetBytes = decodedInputBytes(quads);
+            jobs = acquireBudget(jobs, budgetBytes);
+            jobs.add(new BLASBuildJob(geometries, data, uploadExecution, budgetBytes));
+            merged++;
+        }
+        stats.onBlasGroupsMerged(merged);
+        schedule(jobs);
+        return nextDue;
+    }
+
+    //Charges bytes against the ingest budget for a job that is about to be added to jobs, if there is no room the jobs
+    // collected so far are scheduled first, they are charged already and their builds are what frees the budget up
+    //Returns the list to keep collecting into
+    private List<BLASBuildJob> acquireBudget(List<BLASBuildJob> jobs, long bytes) {
+        if (ingestBudget.tryAcquire(bytes)) {
+            return jobs;
+        }
+        schedule(jobs);
+        awaitBudget(bytes);
+        return new ArrayList<>();
+    }
+
+    //Blocks the ingest worker until bytes fit in the budget, collecting what was freed on it while it waits
+    private void awaitBudget(long bytes) {
+        ingestBudget.acquire(bytes, VRegistry.INSTANCE::threadLocalCollect, INGEST_COLLECT_INTERVAL_MS);
+    }
+
+    //Keeps only the newest output of each section that has acceleration geometry, the superseded outputs are
+    // deleted without their geometry ever being uploaded
+    private List<ChunkBuildOutput> coalesce(List<ChunkBuildOutput> batch) {
+        List<ChunkBuildOutput> outputs = new ArrayList<>(batch.size());
+        Map<ChunkSectionPos, ChunkBuildOutput> latest = new LinkedHashMap<>();
+        int superseded = 0;
+        for (ChunkBuildOutput cbr : batch) {
+            if (((IAccelerationBuildResult) cbr).getAccelerationGeometryData() == null) {
+                outputs.add(cbr);
+                continue;
+            }
+            var key = cbr.render.getPosition();
+            var previous = latest.get(key);
+            if (previous != null && previous.buildTime > cbr.buildTime) {
+                cbr.delete();
+                superseded++;
+                continue;
+            }
+            latest.put(key, cbr);
+            if (previous != null) {
+                previous.delete();
+                superseded++;
+            }
+        }
+        if (superseded != 0) {
+            stats.onBlasJobsCoalesced(superseded);
+        }
+        outputs.addAll(latest.values());
+        return outputs;
+    }
+
+    //Geometry uploads recorded into one command buffer, the jobs are queued once it has been submitted
+    private final class IngestSubmission {
+        private final VRef<VCmdBuff> cmd = context.cmd.getSingleUsePool().createCommandBuffer();
+        private final List<BLASBuildJob> jobs = new ArrayList<>();
+        //Jobs whose positions match the blas that is already built for their section
+        private final List<BLASBuildJob> reused = new ArrayList<>();
+        //Sections with a lod whose geometry is uploaded by this submission
+        private final List<LodSection> lodSections = new ArrayList<>();
+
+        private boolean isEmpty() {
+            return jobs.isEmpty() && reused.isEmpty();
+        }
+    }
+
+    //The passes of one instance category of a section output, sized up before anything is allocated
+    private final class CategoryIngest {
+        private final BlasKey key;
+        private final Map<TerrainRenderPass, GeometryData> passes;
+        private long size = 0;
+        private long quads = 0;
+        private long lodQuads = 0;
+        private int geometryCount = 0;
+        private int lodGeometryCount = 0;
+        private boolean hasLod = false;
+        private final boolean lod;
+        private final long geometryHash;
+        private final boolean reuse;
+        private final long budgetBytes;
+
+        private CategoryIngest(ChunkBuildOutput cbr, GeometryRayFlags category, Map<TerrainRenderPass, GeometryData> passes) {
+            this.key = new BlasKey(cbr.render.getPosition(), category);
+            this.passes = passes;
+            for (var entry : passes.entrySet()) {
+                var geometryData = entry.getValue();
+                long dataSize = cbr.getMesh(entry.getKey()).getVertexData().getLength();
+                int stride = (int) (dataSize / (geometryData.quadCount() * 4L));
+                for (var part : geometryData.parts()) {
+                    size = VUtil.alignUp(size, GEOMETRY_ALIGNMENT) + part.quadCount() * 4L * stride + mergedPositionBytes(part, stride);
+                }
+                quads += geometryData.blasQuadCount();
+                geometryCount += geometryData.parts().size();
+                if (geometryData.lod() != null) {
+                    size = VUtil.alignUp(size, GEOMETRY_ALIGNMENT) + geometryData.lod().vertices().length;
+                    lodQuads += geometryData.lod().quadCount();
+                    lodGeometryCount++;
+                    hasLod = true;
+                } else {
+                    lodQuads += geometryData.blasQuadCount();
+                    lodGeometryCount += geometryData.parts().size();
+                }
+            }
+            size = VUtil.alignUp(size, GEOMETRY_ALIGNMENT);
+
+            //If the positions are the same as the last build of this blas, or of a structure any section already uses,
+            // and no other build of it is queued, only the geometry needs uploading and an existing blas is used
+            this.lod = hasLod && isLodDistance(cbr.render, false);
+            this.geometryHash = SodiumResultAdapter.sectionHash(passes, lod);
+            Long builtHash = builtHashes.get(key);
+            this.reuse = ((builtHash != null && builtHash == geometryHash) || contentCache.contains(geometryHash, lod ? lodGeometryCount : geometryCount))
+                    && !pendingJobs.contains(key);
+            this.budgetBytes = reuse ? 0 : size + decodedInputBytes(lod ? lodQuads : quads);
+        }
+    }
+
+    private void ingest(List<ChunkBuildOutput> batch) {
+        var submission = new IngestSubmission();
 
-        List<BLASBuildJob> jobs = new ArrayList<>(batch.size());
         for (ChunkBuildOutput cbr : batch) {
             var acbr = ((IAccelerationBuildResult) cbr).getAccelerationGeometryData();
             if (acbr == null)
                 continue;
 
-            List<BuiltSectionMeshParts> geometries = new ArrayList<>();
-
-            long totalSize = 0;
+            //The passes are grouped into a blas per instance category so that rays can mask out whole categories
+            Map<GeometryRayFlags, Map<TerrainRenderPass, GeometryData>> grouped = new EnumMap<>(GeometryRayFlags.class);
             for (var entry : acbr.entrySet()) {
-                var geometry = cbr.getMesh(entry.getKey());
-                var dataSize = geometry.getVertexData().getLength();
-                if (dataSize == 0) {
+                if (cbr.getMesh(entry.getKey()).getVertexData().getLength() == 0) {
                     throw new IllegalStateException();
                 }
-                if (!hasJobs) {
-                    hasJobs = true;
+                grouped.computeIfAbsent(GeometryRayFlags.ofPass(entry.getKey()), k -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+
+            if (grouped.isEmpty()) {
+                continue;
+            }
+            //A category the section no longer has is dropped from the tlas, it must be built again if it comes back
+            for (var category : GeometryRayFlags.values()) {
+                if (!grouped.containsKey(category)) {
+                    forgetCategory(cbr.render, category);
                 }
-                totalSize += dataSize;
-                geometries.add(geometry);
             }
 
-            var geomBuffer = context.memory.createBuffer(totalSize,
-                    VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
-                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
-            geomBuffer.get().setDebugUtilsObjectName("Terrain geometry buffer");
+            List<CategoryIngest> categories = new ArrayList<>(grouped.size());
+            int sectionCategories = 0;
+            long totalSize = 0;
+            long budgetBytes = 0;
+            for (var group : grouped.entrySet()) {
+                var category = new CategoryIngest(cbr, group.getKey(), group.getValue());
+                categories.add(category);
+                sectionCategories |= group.getKey().mask();
+                totalSize += category.size;
+                budgetBytes += category.budgetBytes;
+            }
+
+            //Charge the geometry and the decoded build input against the budget before allocating anything, if
+            // there is no room the uploads so far are flushed so that their builds can retire and free it up
+            if (!ingestBudget.tryAcquire(budgetBytes)) {
+                flush(submission);
+                submission = new IngestSubmission();
+                awaitBudget(budgetBytes);
+            }
+
+            var geometryAllocation = geometryPool.allocate(totalSize);
+            //Keeps the range from being handed out again before the upload into it has executed, even if the
+            // jobs get superseded and close their references straight away
+            submission.cmd.get().moveRefGeneric(geometryAllocation.addRefGeneric());
 
-            List<BLASTriangleData> buildData = new ArrayList<>();
-            List<Long> bufferOffsets = new ArrayList<>();
-            int i = 0;
             long destOffset = 0;
-            for (var entry : acbr.entrySet()) {
-                int flag = entry.getKey() == DefaultTerrainRenderPasses.SOLID ? VK_GEOMETRY_OPAQUE_BIT_KHR : 0;
-                buildData.add(new BLASTriangleData(entry.getValue().quadCount(), flag));
+            for (var category : categories) {
+                destOffset = ingestCategory(submission, cbr, category, geometryAllocation, destOffset, sectionCategories);
+            }
+            geometryAllocation.close();
+        }
 
-                var meshParts = geometries.get(i);
-                long dataSize = meshParts.getVertexData().getLength();
+        flush(submission);
 
-                cmd.get().encodeDataUpload(context.memory, MemoryUtil.memAddress(meshParts.getVertexData().getDirectBuffer()), geomBuffer, destOffset, dataSize);
+        //The vertex data has been copied into the upload stream, the outputs are no longer needed
+        for (ChunkBuildOutput cbr : batch) {
+            cbr.delete();
+        }
+    }
+
+    //Uploads the geometry of one category starting at destOffset in the allocation and creates its job, returns the
+    // offset after it
+    private long ingestCategory(IngestSubmission submission, ChunkBuildOutput cbr, CategoryIngest category,
+                                VRef<BufferArenaPool.ArenaAllocation> geometryAllocation, long destOffset, int sectionCategories) {
+        //Both detail levels are uploaded so that a section can switch between them without new geometry
+        List<BLASTriangleData> buildData = new ArrayList<>();
+        List<Long> bufferOffsets = new ArrayList<>();
+        List<BLASTriangleData> lodBuildData = new ArrayList<>();
+        List<Long> lodBufferOffsets = new ArrayList<>();
+        for (var entry : category.passes.entrySet()) {
+            var vertices = cbr.getMesh(entry.getKey()).getVertexData();
+            long dataSize = vertices.getLength();
+            var geometryData = entry.getValue();
+            int stride = (int) (dataSize / (geometryData.quadCount() * 4L));
+            long vertexData = MemoryUtil.memAddress(vertices.getDirectBuffer());
+            int passGeometries = buildData.size();
+            for (var part : geometryData.parts()) {
+                int flag = part.opaque() ? VK_GEOMETRY_OPAQUE_BIT_KHR : 0;
+                destOffset = VUtil.alignUp(destOffset, GEOMETRY_ALIGNMENT);
                 bufferOffsets.add(destOffset);
 
-                destOffset += dataSize;
-                i++;
+                var merged = part.merged();
+                long vertexBytes = part.quadCount() * 4L * stride;
+                if (merged == null) {
+                    buildData.add(new BLASTriangleData(part.quadCount(), flag, destOffset, stride));
+                    long source = vertexData;
+                    if (part.quads() != null) {
+                        source = hostScratch(vertexBytes);
+                        part.writeVertices(vertexData, source, stride);
+                    }
+                    submission.cmd.get().encodeDataUpload(context.upload, source,
+                            geometryAllocation.get().buffer(), geometryAllocation.get().offset + destOffset, vertexBytes);
+                    destOffset += vertexBytes;
+                } else {
+                    //The vertices go up in merged order with the remap in their padding, followed by the merged positions
+                    long positionOffset = VUtil.alignUp(vertexBytes, MERGED_POSITION_ALIGNMENT);
+                    long uploadSize = vertexBytes + mergedPositionBytes(part, stride);
+                    long staging = hostScratch(uploadSize);
+                    QuadMerger.writeRemapped(merged, vertexData, staging);
+                    QuadMerger.writePositions(merged, staging + positionOffset);
+                    buildData.add(new BLASTriangleData(merged.quadCount(), flag, destOffset + positionOffset, QuadMerger.MERGED_VERTEX_STRIDE));
+                    submission.cmd.get().encodeDataUpload(context.upload, staging,
+                            geometryAllocation.get().buffer(), geometryAllocation.get().offset + destOffset, uploadSize);
+                    destOffset += uploadSize;
+                }
             }
 
-            if (!buildData.isEmpty()) {
-                jobs.add(new BLASBuildJob(buildData,
-                        new JobPassThroughData(cbr.render, cbr.buildTime, geomBuffer, bufferOffsets)));
+            //Passes without a lod use their full geometry at both levels
+            var lodData = geometryData.lod();
+            if (lodData == null) {
+                lodBuildData.addAll(buildData.subList(passGeometries, buildData.size()));
+                lodBufferOffsets.addAll(bufferOffsets.subList(passGeometries, bufferOffsets.size()));
+            } else {
+                //Lod boxes are always opaque, their faces copy the texture coordinates of a single quad of the cell so
+                // alpha testing them would punch arbitrary holes into the boxes, and as coarse far away occluders they
+                // are not meant to be see through anyway
+                int flag = VK_GEOMETRY_OPAQUE_BIT_KHR;
+                destOffset = VUtil.alignUp(destOffset, GEOMETRY_ALIGNMENT);
+                long lodSize = lodData.vertices().length;
+                long staging = hostScratch(lodSize);
+                MemoryUtil.memByteBuffer(staging, (int) lodSize).put(0, lodData.vertices());
+                lodBuildData.add(new BLASTriangleData(lodData.quadCount(), flag, destOffset, QuadMerger.VERTEX_STRIDE));
+                lodBufferOffsets.add(destOffset);
+                submission.cmd.get().encodeDataUpload(context.upload, staging,
+                        geometryAllocation.get().buffer(), geometryAllocation.get().offset + destOffset, lodSize);
+                destOffset += lodSize;
             }
         }
 
-        if (hasJobs) {
-            // TODO: Which queue should this be submitted to?
-            // Should we move all uploads to the worker?
-            context.cmd.submitOnceAndWait(1, cmd);
+        boolean lod = category.lod;
+        var level = lod ? new DetailLevel(lodBuildData, lodBufferOffsets, category.geometryHash)
+                : new DetailLevel(buildData, bufferOffsets, category.geometryHash);
+        if (category.hasLod) {
+            var lodSection = new LodSection(cbr.render, cbr.buildTime, geometryAllocation.addRef(), category.key.category(), sectionCategories,
+                    lod ? new DetailLevel(buildData, bufferOffsets, SodiumResultAdapter.sectionHash(category.passes, false)) : level,
+                    lod ? level : new DetailLevel(lodBuildData, lodBufferOffsets, SodiumResultAdapter.sectionHash(category.passes, true)),
+                    lod);
+            submission.lodSections.add(lodSection);
+            var previous = lodSections.put(category.key, lodSection);
+            if (previous != null) {
+                previous.geometry.close();
+            }
+        } else {
+            var previous = lodSections.remove(category.key);
+            if (previous != null) {
+                previous.geometry.close();
+            }
         }
-        cmd.close();
 
-        if (jobs.isEmpty()) {
+        //The upload execution is filled in once the submission is flushed
+        var job = new BLASBuildJob(level.geometries, new JobPassThroughData(cbr.render, cbr.buildTime, geometryAllocation.addRef(),
+                level.bufferOffsets, category.geometryHash, category.key.category(), sectionCategories), 0, category.budgetBytes);
+        if (category.reuse) {
+            submission.reused.add(job);
+        } else {
+            submission.jobs.add(job);
+        }
+        return VUtil.alignUp(destOffset, GEOMETRY_ALIGNMENT);
+    }
+
+    //Bytes the merged positions of a geometry add after its vertices of the given stride, including the alignment padding
+    private static long mergedPositionBytes(GeometryPart part, int stride) {
+        var merged = part.merged();
+        if (merged == null) {
+            return 0;
+        }
+        long vertexBytes = part.quadCount() * 4L * stride;
+        return VUtil.alignUp(vertexBytes, MERGED_POSITION_ALIGNMENT) - vertexBytes
+                + merged.quadCount() * 4L * QuadMerger.MERGED_VERTEX_STRIDE;
+    }
+
+    //Host memory geometry is assembled in before being staged, owned by the ingest worker
+    private long hostScratch(long size) {
+        if (hostScratchSize < size) {
+            hostScratch = MemoryUtil.nmemRealloc(hostScratch, size);
+            hostScratchSize = size;
+        }
+        return hostScratch;
+    }
+
+    //Whether a section is far enough away to use its lod, the distance it switches at depends on the level it is
+    // currently at so that sections near the boundary dont keep switching back and forth
+    private boolean isLodDistance(RenderSection section, boolean currentlyLod) {
+        double dx = section.getOriginX() + 8 - cameraX;
+        double dy = section.getOriginY() + 8 - cameraY;
+        double dz = section.getOriginZ() + 8 - cameraZ;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return distance > AccelerationConfig.BLAS_LOD_DISTANCE + (currentlyLod ? -LOD_HYSTERESIS : LOD_HYSTERESIS);
+    }
+
+    //Moves the sections that crossed the lod distance since the last update to their other level, on the ingest
+    // worker so that it is ordered with the section builds
+    private void updateLods() {
+        lodUpdateRequested.set(false);
+        double dx = cameraX - lodCameraX, dy = cameraY - lodCameraY, dz = cameraZ - lodCameraZ;
+        if (lodSections.isEmpty() || dx * dx + dy * dy + dz * dz < LOD_UPDATE_DISTANCE * LOD_UPDATE_DISTANCE) {
+            return;
+        }
+        lodCameraX = cameraX;
+        lodCameraY = cameraY;
+        lodCameraZ = cameraZ;
+
+        List<BLASBuildJob> jobs = new ArrayList<>();
+        List<BLASBuildResult> reused = new ArrayList<>();
+        long reusedExecution = 0;
+        int switched = 0;
+        for (var lodSection : lodSections.values()) {
+            if (lodSection.section.isDisposed()) {
+                if (lodSections.remove(new BlasKey(lodSection.section.getPosition(), lodSection.category), lodSection)) {
+                    lodSection.geometry.close();
+                }
+                continue;
+            }
+            boolean lod = isLodDistance(lodSection.section, lodSection.usingLod);
+            if (lod == lodSection.usingLod) {
+                continue;
+            }
+            lodSection.usingLod = lod;
+            var level = lod ? lodSection.lod : lodSection.full;
+            var data = new JobPassThroughData(lodSection.section, lodSection.time, lodSection.geometry.addRef(),
+                    level.bufferOffsets, level.geometryHash, lodSection.category, lodSection.sectionCategories);
+            if (contentCache.contains(level.geometryHash, level.bufferOffsets.size()) && !pendingJobs.contains(data.key())) {
+                var job = new BLASBuildJob(level.geometries, data, lodSection.uploadExecution, 0);
+                reused.add(new BLASBuildResult(null, data, () -> rebuild(job)));
+                groupMemberChanged(job);
+                reusedExecution = Math.max(reusedExecution, lodSection.uploadExecution);
+                continue;
+            }
+            long quads = 0;
+            for (var geometry : level.geometries) {
+                quads += geometry.quadCount;
+            }
+            long budgetBytes = decodedInputBytes(quads);
+            jobs = acquireBudget(jobs, budgetBytes);
+            jobs.add(new BLASBuildJob(level.geometries, data, lodSection.uploadExecution, budgetBytes));
+            switched++;
+        }
+        if (!reused.isEmpty()) {
+            stats.onBlasJobsReused(reused.size());
+            resultConsumer.accept(new BLASBatchResult(reused, reusedExecution));
+        }
+        stats.onBlasLodSwitches(switched + reused.size());
+        schedule(jobs);
+    }
+
+    private void flush(IngestSubmission submission) {
+        if (submission.isEmpty()) {
+            submission.cmd.close();
             return; // No jobs to do
         }
-        batchedJobs.add(jobs);
-        awaitingJobBatchess.release();
+
+        //Submitted to the blas queue, the build batches chain onto this with a timeline wait
+        long uploadExecution = context.cmd.submit(asyncQueue, submission.cmd);
+        submission.cmd.close();
+        for (var lodSection : submission.lodSections) {
+            lodSection.uploadExecution = uploadExecution;
+        }
+
+        if (!submission.reused.isEmpty()) {
+            //Nothing to build, the results go out as soon as the geometry upload has executed
+            List<BLASBuildResult> results = new ArrayList<>(submission.reused.size());
+            for (var uploaded : submission.reused) {
+                var job = new BLASBuildJob(uploaded.geometries, uploaded.data, uploadExecution, 0);
+                results.add(new BLASBuildResult(null, job.data, () -> rebuild(job)));
+                groupMemberChanged(job);
+            }
+            stats.onBlasJobsReused(results.size());
+            resultConsumer.accept(new BLASBatchResult(results, uploadExecution));
+        }
+
+        List<BLASBuildJob> jobs = new ArrayList<>(submission.jobs.size());
+        for (var uploaded : submission.jobs) {
+            jobs.add(new BLASBuildJob(uploaded.geometries, uploaded.data, uploadExecution, uploaded.budgetBytes));
+        }
+        schedule(jobs);
+    }
+
+    //Queues jobs whose geometry has been uploaded
+    private void schedule(List<BLASBuildJob> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        int added = 0;
+        for (var job : jobs) {
+            var section = job.data.section();
+            if (job.data.group() == null) {
+                groupMemberChanged(job);
+            }
+            builtHashes.put(job.data.key(), job.data.geometryHash());
+            var superseded = pendingJobs.add(job.data.key(), job,
+                    section.getOriginX() + 8, section.getOriginY() + 8, section.getOriginZ() + 8, now);
+            if (superseded == null) {
+                added++;
+            } else {
+                //The queued job never got recorded, its geometry can go straight away
+                drop(superseded);
+            }
+        }
+        stats.setBlasQueueDepth(pendingJobs.size());
+        awaitingJobs.release(added);
+    }
+
+    //Builds a job whose reuse result could not be applied, unless a newer build of the section is already queued
+    //Reused jobs hold no budget, the build is charged for its decoded vertices like a fresh one, and when that does
+    // not fit it is handed to the ingest worker since this runs on the thread applying the results
+    private void rebuild(BLASBuildJob job) {
+        long budgetBytes = decodedInputBytes(job.quadCount());
+        if (!ingestBudget.tryAcquire(budgetBytes)) {
+            deferredRebuilds.add(job);
+            //Wakes up the ingest worker
+            ingestQueue.add(List.of());
+            return;
+        }
+        queueRebuild(new BLASBuildJob(job.geometries, job.data, job.uploadExecution, budgetBytes));
+    }
+
+    private void scheduleDeferredRebuilds() {
+        BLASBuildJob job;
+        while ((job = deferredRebuilds.poll()) != null) {
+            long budgetBytes = decodedInputBytes(job.quadCount());
+            awaitBudget(budgetBytes);
+            queueRebuild(new BLASBuildJob(job.geometries, job.data, job.uploadExecution, budgetBytes));
+        }
+    }
+
+    private void queueRebuild(BLASBuildJob job) {
+        var section = job.data.section();
+        if (pendingJobs.addIfAbsent(job.data.key(), job,
+                section.getOriginX() + 8, section.getOriginY() + 8, section.getOriginZ() + 8, System.nanoTime())) {
+            builtHashes.put(job.data.key(), job.data.geometryHash());
+            stats.setBlasQueueDepth(pendingJobs.size());
+            awaitingJobs.release();
+        } else {
+            drop(job);
+        }
+    }
+
+    //Forgets the geometry hashes of the section so that a section that is loaded again is always built
+    public void sectionRemoved(RenderSection section) {
+        for (var category : GeometryRayFlags.values()) {
+            forgetCategory(section, category);
+        }
+    }
+
+    private void forgetCategory(RenderSection section, GeometryRayFlags category) {
+        var key = new BlasKey(section.getPosition(), category);
+        builtHashes.remove(key);
+        refitPolicy.forget(key);
+        if (granularity.group(key.position()) != null) {
+            removedGroupMembers.add(key);
+        }
+        var lodSection = lodSections.get(key);
+        if (lodSection != null && lodSection.section == section && lodSections.remove(key, lodSection)) {
+            lodSection.geometry.close();
+        }
+    }
+
+    //Releases a job that will never be built because a newer build of its section replaced it
+    private void drop(BLASBuildJob job) {
+        job.data.release();
+        ingestBudget.release(job.budgetBytes);
+        stats.onBlasJobsCoalesced(1);
     }
 }
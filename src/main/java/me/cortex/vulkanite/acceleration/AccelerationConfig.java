@@ -0,0 +1,53 @@
+package me.cortex.vulkanite.acceleration;
+
+//Tunables for the acceleration structure pipeline, read once from jvm system properties (-Dvulkanite.xxx=...)
+public final class AccelerationConfig {
+    //Upper bound on the number of quads recorded into a single blas build batch
+    public static final long BLAS_BATCH_MAX_QUADS = Long.getLong("vulkanite.blas.batchQuads", 128 * 1024);
+    //Upper bound on the transient device memory (scratch + decoded vertices + uncompacted structures) of a single batch
+    public static final long BLAS_BATCH_MAX_BYTES = Long.getLong("vulkanite.blas.batchBytes", 48L << 20);
+    //Publishes uncompacted blas's as soon as they are built and compacts them in the background, trading memory for latency
+    public static final boolean BLAS_DEFERRED_COMPACTION = Boolean.getBoolean("vulkanite.blas.deferredCompaction");
+    //Builds blas's straight from sodiums 16 bit positions when the device supports it, instead of decoding them to floats first
+    public static final boolean BLAS_DIRECT_POSITIONS = Boolean.parseBoolean(System.getProperty("vulkanite.blas.directPositions", "true"));
+    //Builds blas's from coplanar neighbouring quads merged into larger rectangles, hit shaders have to resolve the
+    // original quad through the remap (VULKANITE_MERGED_QUADS in raylib.glsl)
+    public static final boolean BLAS_MERGE_QUADS = Boolean.getBoolean("vulkanite.blas.mergeQuads");
+    //Splits the cutout geometry of a section into the quads whose texture is fully opaque, which are built as opaque
+    // geometry, and the ones that need alpha testing
+    //Costs a synchronous readback of the whole block atlas (and building its opacity table) on the render thread every
+    // time the atlas is uploaded, and changes which cutout quads shader packs see as opaque geometry
+    public static final boolean BLAS_OPACITY_SPLIT = Boolean.getBoolean("vulkanite.blas.opacitySplit");
+    //Sections further than this many blocks from the camera are traced against a simplified box blas, 0 disables lods
+    public static final double BLAS_LOD_DISTANCE = Double.parseDouble(System.getProperty("vulkanite.blas.lodDistance", "0"));
+    //Size in blocks of the boxes lod blas's are made of, has to divide 16
+    public static final int BLAS_LOD_CELL_SIZE = Integer.getInteger("vulkanite.blas.lodCellSize", 4);
+    //How many times in a row a section blas can be refit from its previous structure before it is rebuilt, 0 disables refits
+    public static final int BLAS_MAX_REFITS = Integer.getInteger("vulkanite.blas.maxRefits", 8);
+    //A section rebuilt within this many milliseconds of its previous build is built so that its next build can be a refit
+    public static final long BLAS_REFIT_WINDOW_MS = Long.getLong("vulkanite.blas.refitWindow", 10_000);
+    //Most updatable structures kept around as refit sources, the least recently built keys lose theirs first
+    public static final int BLAS_MAX_REFIT_SOURCES = Integer.getInteger("vulkanite.blas.maxRefitSources", 1024);
+    //How many sections share a blas, "section" or "region" (see BlasGranularity), merged regions keep the section blas's
+    // alive as well so that an edit only has to split the region
+    //Always "section" with merged quads, hit shaders cant find the section of a merged quad in a group (VULKANITE_GROUPED_BLAS in raylib.glsl)
+    public static final BlasGranularity BLAS_GRANULARITY = BLAS_MERGE_QUADS ? BlasGranularity.SECTION
+            : BlasGranularity.byName(System.getProperty("vulkanite.blas.granularity", "section"));
+    //Milliseconds none of the sections of a group may have changed before they are merged into one blas
+    public static final long BLAS_MERGE_DELAY_MS = Long.getLong("vulkanite.blas.mergeDelay", 5_000);
+    //Upper bound on the device memory (geometry + decoded vertices) of blas jobs that have been ingested but not built yet
+    public static final long BLAS_INGEST_BUDGET_BYTES = Long.getLong("vulkanite.blas.ingestBudget", 256L << 20);
+    //How many blocks closer to the camera a queued blas job is treated as per second it has been waiting
+    public static final double BLAS_AGING_RATE = Double.parseDouble(System.getProperty("vulkanite.blas.agingRate", "64"));
+    //Frames the tlas storage and scratch buffers have to stay more than 4x larger than every build in between needed
+    // before they are shrunk, frames that reuse or refit the tlas count as well
+    public static final int TLAS_SHRINK_FRAMES = Integer.getInteger("vulkanite.tlas.shrinkFrames", 300);
+    //Builds the entities into their own tlas, bound next to the terrain tlas (VULKANITE_ENTITY_TLAS), so that moving
+    // entities dont rebuild the terrain tlas, shader packs have to trace both to see entities
+    public static final boolean TLAS_SPLIT = Boolean.getBoolean("vulkanite.tlas.split");
+    //Prints the stats of every blas batch to stdout
+    public static final boolean LOG_BLAS_BATCHES = Boolean.getBoolean("vulkanite.blas.logBatches");
+
+    private AccelerationConfig() {
+    }
+}
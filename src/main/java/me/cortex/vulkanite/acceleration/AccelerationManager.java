@@ -23,13 +23,20 @@ public class AccelerationManager {
 
     private final AccelerationBlasBuilder blasBuilder;
     private final ConcurrentLinkedDeque<AccelerationBlasBuilder.BLASBatchResult> blasResults = new ConcurrentLinkedDeque<>();
+    private final ConcurrentLinkedDeque<AccelerationBlasBuilder.BLASCompactionBatch> compactionResults = new ConcurrentLinkedDeque<>();
 
     private final AccelerationTLASManager tlasManager;
+    private final AccelerationStats stats = new AccelerationStats();
 
     public AccelerationManager(VContext context, int blasBuildQueue) {
         this.ctx = context;
-        this.blasBuilder = new AccelerationBlasBuilder(context, blasBuildQueue, blasResults::add);
         this.tlasManager = new AccelerationTLASManager(context, 0);//TODO: pick the main queue or something? (maybe can do the blasBuildQueue)
+        this.blasBuilder = new AccelerationBlasBuilder(context, blasBuildQueue, stats, tlasManager.getContentCache(),
+                blasResults::add, compactionResults::add);
+    }
+
+    public void setCameraPosition(double x, double y, double z) {
+        blasBuilder.setCameraPosition(x, y, z);
     }
 
     public void chunkBuilds(List<ChunkBuildOutput> results) {
@@ -55,6 +62,16 @@ public class AccelerationManager {
             }
             tlasManager.updateSections(results);
         }
+        //Compactions are collected after the builds so that the build a compaction refers to is always seen first
+        if (!compactionResults.isEmpty()) {
+            List<AccelerationBlasBuilder.BLASCompactionResult> results = new LinkedList<>();
+            while (!compactionResults.isEmpty()) {
+                var batch = compactionResults.poll();
+                results.addAll(batch.results());
+                blasExecutions.add(batch.execution());
+            }
+            tlasManager.updateCompactions(results);
+        }
     }
 
     public VRef<VAccelerationStructure> buildTLAS(int queueId, VCmdBuff cmd) {
@@ -63,7 +80,13 @@ public class AccelerationManager {
         return tlasManager.buildTLAS(cmd);
     }
 
+    //Only built with a split tlas, null otherwise
+    public VRef<VAccelerationStructure> getEntityTLAS() {
+        return tlasManager.getEntityTLAS();
+    }
+
     public void sectionRemove(RenderSection section) {
+        blasBuilder.sectionRemoved(section);
         tlasManager.removeSection(section);
     }
 
@@ -74,4 +97,8 @@ public class AccelerationManager {
     public VRef<VDescriptorSetLayout> getGeometryLayout() {
         return tlasManager.getGeometryLayout();
     }
+
+    public AccelerationStats getStats() {
+        return stats;
+    }
 }
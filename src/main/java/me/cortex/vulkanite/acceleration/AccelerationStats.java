@@ -0,0 +1,194 @@
+package me.cortex.vulkanite.acceleration;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Counters for tuning the acceleration structure pipeline, written from the worker threads and read from anywhere
+public class AccelerationStats {
+    public record BlasBatch(int jobs, long quads, long scratchBytes, long structureBytes, long inputBytes, long wallTimeNanos) {
+        @Override
+        public String toString() {
+            return "BLAS batch: " + jobs + " jobs, " + quads + " quads, scratch " + (scratchBytes >> 10) + "KB, structures "
+                    + (structureBytes >> 10) + "KB, input " + (inputBytes >> 10) + "KB, " + String.format("%.2f", wallTimeNanos / 1e6) + "ms";
+        }
+    }
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong quads = new AtomicLong();
+    private final AtomicLong scratchBytes = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private volatile BlasBatch lastBatch = null;
+
+    private static final int WAIT_SAMPLES = 1024;
+    private final AtomicInteger blasQueueDepth = new AtomicInteger();
+    //Ring of the most recent times jobs spent in the blas queue
+    private final long[] blasWaitSamples = new long[WAIT_SAMPLES];
+    private int blasWaitSampleCount = 0;
+    private final AtomicLong coalescedJobs = new AtomicLong();
+    private final AtomicLong reusedJobs = new AtomicLong();
+    private final AtomicLong lodSwitches = new AtomicLong();
+    private final AtomicLong refits = new AtomicLong();
+    private final AtomicLong groupMerges = new AtomicLong();
+    private volatile BlasIngestBudget ingestBudget = null;
+    private volatile BlasContentCache<?, ?> contentCache = null;
+    private volatile String blasPositionSource = null;
+
+    public void onBlasBatch(BlasBatch batch) {
+        batches.incrementAndGet();
+        jobs.addAndGet(batch.jobs());
+        quads.addAndGet(batch.quads());
+        scratchBytes.addAndGet(batch.scratchBytes());
+        batchNanos.addAndGet(batch.wallTimeNanos());
+        lastBatch = batch;
+        if (AccelerationConfig.LOG_BLAS_BATCHES) {
+            System.out.println(batch);
+        }
+    }
+
+    public BlasBatch getLastBlasBatch() {
+        return lastBatch;
+    }
+
+    public void setBlasQueueDepth(int depth) {
+        blasQueueDepth.set(depth);
+    }
+
+    public int getBlasQueueDepth() {
+        return blasQueueDepth.get();
+    }
+
+    //Whether the blas builds read Sodium's positions directly or from the decode pass, fixed at startup
+    public void setBlasPositionSource(boolean direct) {
+        blasPositionSource = direct ? "direct" : "decoded";
+    }
+
+    //Section builds that were dropped because a newer build of the same section arrived before they reached the gpu
+    public void onBlasJobsCoalesced(int count) {
+        coalescedJobs.addAndGet(count);
+    }
+
+    public long getCoalescedBlasJobs() {
+        return coalescedJobs.get();
+    }
+
+    //Section builds whose positions were unchanged so the existing blas was kept
+    public void onBlasJobsReused(int count) {
+        reusedJobs.addAndGet(count);
+    }
+
+    public long getReusedBlasJobs() {
+        return reusedJobs.get();
+    }
+
+    //Sections moved between their full and lod blas as the camera moved
+    public void onBlasLodSwitches(int count) {
+        lodSwitches.addAndGet(count);
+    }
+
+    public long getBlasLodSwitches() {
+        return lodSwitches.get();
+    }
+
+    //Section builds that updated the previous structure of the section instead of building a new one
+    public void onBlasRefits(int count) {
+        refits.addAndGet(count);
+    }
+
+    public long getBlasRefits() {
+        return refits.get();
+    }
+
+    //Groups of stable sections that were merged into a single blas
+    public void onBlasGroupsMerged(int count) {
+        groupMerges.addAndGet(count);
+    }
+
+    public long getBlasGroupMerges() {
+        return groupMerges.get();
+    }
+
+    void trackIngestBudget(BlasIngestBudget budget) {
+        ingestBudget = budget;
+    }
+
+    void trackContentCache(BlasContentCache<?, ?> cache) {
+        contentCache = cache;
+    }
+
+    //Bytes of device memory charged against the ingest budget by jobs that have not finished building
+    public long getIngestBytes() {
+        var budget = ingestBudget;
+        return budget == null ? 0 : budget.used();
+    }
+
+    public long getIngestBudgetBytes() {
+        var budget = ingestBudget;
+        return budget == null ? 0 : budget.limit();
+    }
+
+    public void onBlasJobDequeued(long waitNanos) {
+        synchronized (blasWaitSamples) {
+            blasWaitSamples[blasWaitSampleCount++ % WAIT_SAMPLES] = waitNanos;
+        }
+    }
+
+    //Median time the recent jobs spent waiting in the blas queue, -1 if no jobs have been dequeued yet
+    public long getMedianBlasWaitNanos() {
+        long[] samples;
+        synchronized (blasWaitSamples) {
+            samples = Arrays.copyOf(blasWaitSamples, Math.min(blasWaitSampleCount, WAIT_SAMPLES));
+        }
+        if (samples.length == 0) {
+            return -1;
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    public String dumpStats() {
+        long batches = this.batches.get();
+        final StringBuilder sb = new StringBuilder();
+        sb.append("\nAcceleration stats:\n");
+        sb.append("  BLAS batches: ").append(batches).append("\n");
+        sb.append("  BLAS jobs: ").append(jobs.get()).append("\n");
+        sb.append("  BLAS quads: ").append(quads.get()).append("\n");
+        var positionSource = blasPositionSource;
+        if (positionSource != null) {
+            sb.append("  BLAS positions: ").append(positionSource).append("\n");
+        }
+        sb.append("  BLAS queue depth: ").append(blasQueueDepth.get()).append("\n");
+        sb.append("  BLAS jobs coalesced: ").append(coalescedJobs.get()).append("\n");
+        sb.append("  BLAS jobs reused: ").append(reusedJobs.get()).append("\n");
+        sb.append("  BLAS lod switches: ").append(lodSwitches.get()).append("\n");
+        sb.append("  BLAS refits: ").append(refits.get()).append("\n");
+        sb.append("  BLAS group merges: ").append(groupMerges.get()).append("\n");
+        var cache = contentCache;
+        if (cache != null) {
+            sb.append("  BLAS content cache: ").append(cache.size()).append(" structures shared by ")
+                    .append(cache.users()).append(" sections\n");
+        }
+        var budget = ingestBudget;
+        if (budget != null) {
+            sb.append("  BLAS ingest budget: ").append(budget.used() >> 10).append("KB / ").append(budget.limit() >> 10)
+                    .append("KB, ").append(budget.stalls()).append(" stalls (")
+                    .append(String.format("%.2f", budget.stallNanos() / 1e6)).append("ms)\n");
+        }
+        long medianWait = getMedianBlasWaitNanos();
+        if (medianWait != -1) {
+            sb.append("  Median BLAS queue wait: ").append(String.format("%.2f", medianWait / 1e6)).append("ms\n");
+        }
+        if (batches != 0) {
+            sb.append("  Avg jobs/batch: ").append(jobs.get() / batches).append("\n");
+            sb.append("  Avg quads/batch: ").append(quads.get() / batches).append("\n");
+            sb.append("  Avg scratch/batch: ").append((scratchBytes.get() / batches) >> 10).append("KB\n");
+            sb.append("  Avg batch time: ").append(String.format("%.2f", batchNanos.get() / 1e6 / batches)).append("ms\n");
+        }
+        var last = lastBatch;
+        if (last != null) {
+            sb.append("  Last: ").append(last).append("\n");
+        }
+        return sb.toString();
+    }
+}
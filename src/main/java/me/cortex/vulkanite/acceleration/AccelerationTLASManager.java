@@ -11,6 +11,7 @@ import me.cortex.vulkanite.lib.base.VObject;
 import me.cortex.vulkanite.lib.base.VRef;
 import me.cortex.vulkanite.lib.cmd.VCmdBuff;
 import me.cortex.vulkanite.lib.descriptors.*;
+import me.cortex.vulkanite.lib.memory.BufferArenaPool;
 import me.cortex.vulkanite.lib.memory.VAccelerationStructure;
 import me.cortex.vulkanite.lib.memory.VBuffer;
 import me.jellysquid.mods.sodium.client.render.chunk.RenderSection;
@@ -26,15 +27,21 @@ import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
 import static org.lwjgl.system.MemoryStack.stackPush;
-import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
 import static org.lwjgl.vulkan.KHRAccelerationStructure.*;
 import static org.lwjgl.vulkan.KHRBufferDeviceAddress.VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR;
+import static org.lwjgl.vulkan.KHRRayTracingPipeline.VK_PIPELINE_STAGE_RAY_TRACING_SHADER_BIT_KHR;
 import static org.lwjgl.vulkan.VK10.*;
 import static org.lwjgl.vulkan.VK12.*;
 
 public class AccelerationTLASManager {
     private final EntityBlasBuilder entityBlasBuilder;
     private final TLASSectionManager buildDataManager = new TLASSectionManager();
+    private final TlasChain terrainChain = new TlasChain("TLAS");
+    // With a split tlas the entity instances go into their own tlas that is rebuilt every frame, so that moving
+    // entities dont cause the terrain tlas to be rebuilt
+    private final TLASGeometryManager entityInstances = AccelerationConfig.TLAS_SPLIT ? new TLASGeometryManager(0) : null;
+    private final TlasChain entityChain = AccelerationConfig.TLAS_SPLIT ? new TlasChain("Entity TLAS") : null;
+    private VRef<VAccelerationStructure> entityTlas;
     private final VContext context;
     private final int queue;
     private List<Pair<RenderLayer, BufferBuilder.BuiltBuffer>> entityData;
@@ -57,6 +64,10 @@ public class AccelerationTLASManager {
         return v;
     }
 
+    private static long withHeadroom(long size) {
+        return Math.max((size + (size >> 2) + 255) & ~255L, 256);
+    }
+
     // Returns a sync semaphore to chain in the next command submit
     public void updateSections(List<AccelerationBlasBuilder.BLASBuildResult> results) {
         for (var result : results) {
@@ -68,6 +79,12 @@ public class AccelerationTLASManager {
         }
     }
 
+    public void updateCompactions(List<AccelerationBlasBuilder.BLASCompactionResult> results) {
+        for (var result : results) {
+            buildDataManager.compacted(result);
+        }
+    }
+
     public void setEntityData(List<Pair<RenderLayer, BufferBuilder.BuiltBuffer>> data) {
         this.entityData = data;
     }
@@ -76,6 +93,10 @@ public class AccelerationTLASManager {
         buildDataManager.remove(section);
     }
 
+    BlasContentCache<?, ?> getContentCache() {
+        return buildDataManager.contentCache;
+    }
+
     // TODO: cleanup, this is very messy
     // FIXME: in the case of no geometry create an empty tlas or something???
     public VRef<VAccelerationStructure> buildTLAS(VCmdBuff cmd) {
@@ -89,8 +110,6 @@ public class AccelerationTLASManager {
             // each region is its own geometry input
             // this is done for performance reasons when updating (adding/removing) sections
 
-            VkAccelerationStructureGeometryKHR geometry = VkAccelerationStructureGeometryKHR.calloc(stack);
-
             if (entityData != null) {
                 var entityBuild = entityBlasBuilder.buildBlas(entityData, cmd);
 
@@ -100,7 +119,7 @@ public class AccelerationTLASManager {
                     }
 
                     var entityASI = VkAccelerationStructureInstanceKHR.calloc(stack)
-                            .mask(~0)
+                            .mask(GeometryRayFlags.ENTITY.mask())
                             .instanceShaderBindingTableRecordOffset(1);
                     entityASI.transform().matrix(new Matrix4x3f().getTransposed(stack.mallocFloat(12)));
 
@@ -111,137 +130,259 @@ public class AccelerationTLASManager {
             }
 
             // getInstanceBuffer also builds / updates the geometry desc set
-            var rets = buildDataManager.getInstanceBuffer();
-            var instanceBuffer = rets.getLeft();
-            int numInstances = rets.getRight();
+            var rets = buildDataManager.getInstanceBuffer(cmd);
 
             for (var holderRef : buildDataManager.activeSections.values()) {
                 // Let the cmdbuf manage the lifetime of the holder & desc set entry
                 cmd.moveRefGeneric(holderRef.addRefGeneric());
             }
+            for (var holderRef : buildDataManager.activeGroups.values()) {
+                cmd.moveRefGeneric(holderRef.addRefGeneric());
+            }
+
+            // Structures swapped out by compaction may still be used by frames in flight
+            for (var structure : buildDataManager.retiredStructures) {
+                cmd.addAccelerationStructureRef(structure);
+                structure.close();
+            }
+            buildDataManager.retiredStructures.clear();
+
+            var tlas = terrainChain.build(cmd, rets);
 
-            geometry.sType$Default()
-                    .geometryType(VK_GEOMETRY_TYPE_INSTANCES_KHR)
-                    .flags(0);
-
-            geometry.geometry()
-                    .instances()
-                    .sType$Default()
-                    .arrayOfPointers(false);
-
-            geometry.geometry()
-                    .instances()
-                    .data()
-                    .deviceAddress(instanceBuffer.get().deviceAddress());
-
-            // TLAS always rebuild & PREFER_FAST_TRACE according to Nvidia
-            var buildInfo = VkAccelerationStructureBuildGeometryInfoKHR.calloc(1, stack)
-                    .sType$Default()
-                    .mode(VK_BUILD_ACCELERATION_STRUCTURE_MODE_BUILD_KHR)
-                    .type(VK_ACCELERATION_STRUCTURE_TYPE_TOP_LEVEL_KHR)
-                    .flags(VK_BUILD_ACCELERATION_STRUCTURE_PREFER_FAST_TRACE_BIT_KHR)
-                    .pGeometries(VkAccelerationStructureGeometryKHR.create(geometry.address(), 1))
-                    .geometryCount(1);
-
-            VkAccelerationStructureBuildSizesInfoKHR buildSizesInfo = VkAccelerationStructureBuildSizesInfoKHR
-                    .calloc(stack)
-                    .sType$Default();
-
-            int[] instanceCounts = new int[]{numInstances};
-            vkGetAccelerationStructureBuildSizesKHR(
-                    context.device,
-                    VK_ACCELERATION_STRUCTURE_BUILD_TYPE_DEVICE_KHR,
-                    buildInfo.get(0), // The reason its a buffer is cause of pain and that
-                    // vkCmdBuildAccelerationStructuresKHR requires a buffer of
-                    // VkAccelerationStructureBuildGeometryInfoKHR
-                    stack.ints(instanceCounts),
-                    buildSizesInfo);
-
-            var tlas = context.memory.createAcceleration(buildSizesInfo.accelerationStructureSize(),
-                    256,
-                    VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR, VK_ACCELERATION_STRUCTURE_TYPE_TOP_LEVEL_KHR);
-
-            // TODO: instead of making a new scratch buffer, try to reuse
-            // ACTUALLY wait since we doing the on fence free thing, we dont have to worry
-            // about that and it should
-            // get automatically freed since we using vma dont have to worry about
-            // performance _too_ much i think
-            var scratchBuffer = context.memory.createBuffer(buildSizesInfo.buildScratchSize(),
-                    VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
-                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 256, 0);
-            scratchBuffer.get().setDebugUtilsObjectName("TLAS Scratch Buffer");
-
-            buildInfo.dstAccelerationStructure(tlas.get().structure)
-                    .scratchData(VkDeviceOrHostAddressKHR.calloc(stack)
-                            .deviceAddress(scratchBuffer.get().deviceAddress()));
-
-            var buildRanges = VkAccelerationStructureBuildRangeInfoKHR.calloc(instanceCounts.length, stack);
-            for (int count : instanceCounts) {
-                buildRanges.get().primitiveCount(count);
-            }
-            buildRanges.rewind();
-
-            cmd.encodeMemoryBarrier();
-
-            vkCmdBuildAccelerationStructuresKHR(cmd.buffer(),
-                    buildInfo,
-                    stack.pointers(buildRanges));
-            cmd.addBufferRef(instanceBuffer);
-            cmd.addBufferRef(scratchBuffer);
-            instanceBuffer.close();
-            scratchBuffer.close();
-
-            cmd.encodeMemoryBarrier();
+            if (entityChain != null) {
+                if (entityTlas != null) {
+                    entityTlas.close();
+                }
+                entityTlas = entityChain.build(cmd, entityInstances.getInstanceBuffer(cmd));
+            }
 
             return tlas;
         }
     }
 
-    public VRef<VDescriptorSet> getGeometrySet() {
-        return buildDataManager.geometryBufferDescSet.addRef();
+    // The tlas holding only the entities when the tlas is split, null otherwise
+    public VRef<VAccelerationStructure> getEntityTLAS() {
+        return entityTlas == null ? null : entityTlas.addRef();
     }
 
-    public VRef<VDescriptorSetLayout> getGeometryLayout() {
-        return buildDataManager.geometryBufferSetLayout.addRef();
-    }
+    // Builds one tlas from frame to frame, reusing or refitting the previous one when possible
+    private final class TlasChain {
+        private final String name;
+        // Tlas storage and scratch of the frames whose command buffers have finished, reused by the next builds
+        private final ConcurrentLinkedDeque<FrameResources> retiredResources = new ConcurrentLinkedDeque<>();
+        // The resources of the last tlas that was built, kept so that frames without changes can reuse or refit it
+        private VRef<FrameResources> lastResources;
+        private int lastInstanceCount;
+        private int lastEphemeralCount;
+        private boolean lastUpdatable;
+        // Counts every call to build, frames that skip or refit the tlas included
+        private long frame;
+
+        private TlasChain(String name) {
+            this.name = name;
+        }
 
-    private static final class TlasPointerArena {
-        private final BitSet vacant;
-        public int maxIndex = 0;
+        private VRef<VAccelerationStructure> build(VCmdBuff cmd, InstanceBuffer rets) {
+            frame++;
+            var instanceBuffer = rets.buffer();
+            int numInstances = rets.count();
+            try (var stack = stackPush()) {
+                VkAccelerationStructureGeometryKHR geometry = VkAccelerationStructureGeometryKHR.calloc(stack);
+
+                geometry.sType$Default()
+                        .geometryType(VK_GEOMETRY_TYPE_INSTANCES_KHR)
+                        .flags(0);
+
+                geometry.geometry()
+                        .instances()
+                        .sType$Default()
+                        .arrayOfPointers(false);
+
+                geometry.geometry()
+                        .instances()
+                        .data()
+                        .deviceAddress(instanceBuffer.get().deviceAddress());
+
+                boolean sameInstances = lastResources != null && !rets.changed() && numInstances == lastInstanceCount;
+                if (sameInstances && rets.ephemeralCount() == 0 && lastEphemeralCount == 0) {
+                    // Nothing changed since the last build, the tlas is still valid
+                    instanceBuffer.close();
+                    cmd.moveRefGeneric(lastResources.addRefGeneric());
+                    return lastResources.get().tlas.addRef();
+                }
 
-        private TlasPointerArena(int size) {
-            size *= 3;
-            vacant = new BitSet(size);
-            vacant.set(0, size);
-        }
+                // PREFER_FAST_TRACE according to Nvidia, tlas's with entities are built updatable so that the frames where
+                // only the entities moved can be refit instead of rebuilt
+                int flags = VK_BUILD_ACCELERATION_STRUCTURE_PREFER_FAST_TRACE_BIT_KHR;
+                boolean refit = sameInstances && lastUpdatable;
+                if (refit || rets.ephemeralCount() != 0) {
+                    flags |= VK_BUILD_ACCELERATION_STRUCTURE_ALLOW_UPDATE_BIT_KHR;
+                }
+                var buildInfo = VkAccelerationStructureBuildGeometryInfoKHR.calloc(1, stack)
+                        .sType$Default()
+                        .mode(VK_BUILD_ACCELERATION_STRUCTURE_MODE_BUILD_KHR)
+                        .type(VK_ACCELERATION_STRUCTURE_TYPE_TOP_LEVEL_KHR)
+                        .flags(flags)
+                        .pGeometries(VkAccelerationStructureGeometryKHR.create(geometry.address(), 1))
+                        .geometryCount(1);
+
+                VkAccelerationStructureBuildSizesInfoKHR buildSizesInfo = VkAccelerationStructureBuildSizesInfoKHR
+                        .calloc(stack)
+                        .sType$Default();
+
+                int[] instanceCounts = new int[]{numInstances};
+                vkGetAccelerationStructureBuildSizesKHR(
+                        context.device,
+                        VK_ACCELERATION_STRUCTURE_BUILD_TYPE_DEVICE_KHR,
+                        buildInfo.get(0), // The reason its a buffer is cause of pain and that
+                        // vkCmdBuildAccelerationStructuresKHR requires a buffer of
+                        // VkAccelerationStructureBuildGeometryInfoKHR
+                        stack.ints(instanceCounts),
+                        buildSizesInfo);
+
+                if (refit && lastResources.get().scratchSize < buildSizesInfo.updateScratchSize()) {
+                    refit = false;
+                }
 
-        public int allocate(int count) {
-            int pos = vacant.nextSetBit(0);
-            outer:
-            while (pos != -1) {
-                for (int offset = 1; offset < count; offset++) {
-                    if (!vacant.get(offset + pos)) {
-                        pos = vacant.nextSetBit(offset + pos + 1);
-                        continue outer;
+                FrameResources resources;
+                if (refit) {
+                    // The tlas is updated in place, the frames that are still tracing it have to finish first
+                    resources = lastResources.get();
+                    var barrier = VkMemoryBarrier.calloc(1, stack);
+                    barrier.get(0).sType$Default()
+                            .srcAccessMask(VK_ACCESS_ACCELERATION_STRUCTURE_READ_BIT_KHR | VK_ACCESS_ACCELERATION_STRUCTURE_WRITE_BIT_KHR)
+                            .dstAccessMask(VK_ACCESS_ACCELERATION_STRUCTURE_WRITE_BIT_KHR);
+                    vkCmdPipelineBarrier(cmd.buffer(),
+                            VK_PIPELINE_STAGE_RAY_TRACING_SHADER_BIT_KHR | VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR,
+                            VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR, 0, barrier, null, null);
+                    buildInfo.mode(VK_BUILD_ACCELERATION_STRUCTURE_MODE_UPDATE_KHR)
+                            .srcAccelerationStructure(resources.tlas.get().structure);
+                } else {
+                    resources = acquireResources(buildSizesInfo.accelerationStructureSize(), buildSizesInfo.buildScratchSize());
+                    if (lastResources != null) {
+                        lastResources.close();
                     }
+                    lastResources = new VRef<>(resources);
+                }
+                lastInstanceCount = numInstances;
+                lastEphemeralCount = rets.ephemeralCount();
+                lastUpdatable = (flags & VK_BUILD_ACCELERATION_STRUCTURE_ALLOW_UPDATE_BIT_KHR) != 0;
+
+                var tlas = resources.tlas.addRef();
+                var scratchBuffer = resources.scratch;
+
+                buildInfo.dstAccelerationStructure(tlas.get().structure)
+                        .scratchData(VkDeviceOrHostAddressKHR.calloc(stack)
+                                .deviceAddress(scratchBuffer.get().deviceAddress()));
+
+                var buildRanges = VkAccelerationStructureBuildRangeInfoKHR.calloc(instanceCounts.length, stack);
+                for (int count : instanceCounts) {
+                    buildRanges.get().primitiveCount(count);
                 }
-                break;
+                buildRanges.rewind();
+
+                cmd.encodeMemoryBarrier();
+
+                vkCmdBuildAccelerationStructuresKHR(cmd.buffer(),
+                        buildInfo,
+                        stack.pointers(buildRanges));
+                cmd.addBufferRef(instanceBuffer);
+                instanceBuffer.close();
+                // The resources go back to the pool once the command buffer has finished executing
+                cmd.moveRefGeneric(lastResources.addRefGeneric());
+
+                cmd.encodeMemoryBarrier();
+
+                return tlas;
             }
-            if (pos == -1) {
-                throw new IllegalStateException();
+        }
+
+        // Takes the most recently retired resources and resizes them if they dont fit, buffers are grown with some headroom
+        // and only shrunk once they have been much larger than needed for a while, so sizes that jitter from frame to frame
+        // dont reallocate
+        private FrameResources acquireResources(long storageSize, long scratchSize) {
+            var resources = retiredResources.pollLast();
+            if (resources == null) {
+                resources = new FrameResources();
             }
-            vacant.clear(pos, pos + count);
-            maxIndex = Math.max(maxIndex, pos + count);
-            return pos;
+            // Only as many resources as there are frames in flight are kept
+            while (retiredResources.size() > 3) {
+                retiredResources.pollFirst().destroy();
+            }
+
+            // Builds can be far apart when nothing changes, so the time spent oversized is measured in frames from the
+            // first build that found the resources oversized, any build that needs them at their size starts it over
+            boolean oversized = resources.storageSize > storageSize * 4 || resources.scratchSize > scratchSize * 4;
+            if (!oversized) {
+                resources.oversizedSince = -1;
+            } else if (resources.oversizedSince == -1) {
+                resources.oversizedSince = frame;
+            }
+            boolean shrink = oversized && frame - resources.oversizedSince > AccelerationConfig.TLAS_SHRINK_FRAMES;
+            if (shrink) {
+                resources.oversizedSince = -1;
+            }
+
+            if (resources.tlas == null || resources.storageSize < storageSize || (shrink && resources.storageSize > storageSize * 4)) {
+                if (resources.tlas != null) {
+                    resources.tlas.close();
+                }
+                resources.storageSize = withHeadroom(storageSize);
+                resources.tlas = context.memory.createAcceleration(resources.storageSize,
+                        256,
+                        VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR, VK_ACCELERATION_STRUCTURE_TYPE_TOP_LEVEL_KHR);
+            }
+            if (resources.scratch == null || resources.scratchSize < scratchSize || (shrink && resources.scratchSize > scratchSize * 4)) {
+                if (resources.scratch != null) {
+                    resources.scratch.close();
+                }
+                resources.scratchSize = withHeadroom(scratchSize);
+                resources.scratch = context.memory.createBuffer(resources.scratchSize,
+                        VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT_KHR | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
+                        VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 256, 0);
+                resources.scratch.get().setDebugUtilsObjectName(name + " Scratch Buffer");
+            }
+            return resources;
         }
 
-        public void free(int pos, int count) {
-            vacant.set(pos, pos + count);
+        // A tlas and its scratch buffer, referenced by the command buffers that built or used the tlas and by lastResources,
+        // when they are all released the resources are retired to the pool instead of being destroyed
+        private final class FrameResources extends VObject {
+            private VRef<VAccelerationStructure> tlas;
+            private VRef<VBuffer> scratch;
+            private long storageSize;
+            private long scratchSize;
+            // Frame of the chain since which the resources have been oversized, -1 if they are not
+            private long oversizedSince = -1;
+
+            @Override
+            protected void free() {
+                retiredResources.addLast(this);
+            }
 
-            maxIndex = vacant.previousClearBit(maxIndex) + 1;
+            private void destroy() {
+                if (tlas != null) {
+                    tlas.close();
+                }
+                if (scratch != null) {
+                    scratch.close();
+                }
+            }
         }
     }
 
+    public VRef<VDescriptorSet> getGeometrySet() {
+        return buildDataManager.geometryBufferDescSet.addRef();
+    }
+
+    public VRef<VDescriptorSetLayout> getGeometryLayout() {
+        return buildDataManager.geometryBufferSetLayout.addRef();
+    }
+
+    // changed is whether any of the persistent instances were added, removed or modified since the last frame
+    private record InstanceBuffer(VRef<VBuffer> buffer, int count, int ephemeralCount, boolean changed) {
+    }
+
     // Manages entries in the VkAccelerationStructureInstanceKHR buffer, ment to
     // reuse as much as possible and be very efficient
     private class TLASGeometryManager {
@@ -251,8 +392,14 @@ public class AccelerationTLASManager {
         // Stream this to the gpu per frame (not ideal tbh, could implement a cache of
         // some kind)
 
-        // Needs a gpu buffer for the instance data, this can be reused
-        // private VkAccelerationStructureInstanceKHR.Buffer buffer;
+        // The instances are mirrored into a persistent device local buffer, only the locations that changed since the
+        // last frame are uploaded, the ephemeral instances are appended after the persistent ones every frame
+        // Uploads and builds are all on the same queue, so the barriers around the copy are enough to reuse the buffer
+        private VRef<VBuffer> gpuInstances = null;
+        private int gpuCapacity = 0;
+        private final DirtyRangeTracker dirty = new DirtyRangeTracker(16);
+        // Whether the persistent instances changed since the last getInstanceBuffer
+        private boolean changed = false;
 
         private final IntArrayFIFOQueue freeIds = new IntArrayFIFOQueue();
         private int maxInstances = 0;
@@ -264,7 +411,11 @@ public class AccelerationTLASManager {
         private int[] id2loc = new int[maxInstances];
 
         public TLASGeometryManager() {
-            resize(32768);
+            this(32768);
+        }
+
+        public TLASGeometryManager(int initialSize) {
+            resize(initialSize);
         }
 
         public void resize(int newSize) {
@@ -313,16 +464,25 @@ public class AccelerationTLASManager {
 
             // Copy the instance to the buffer
             MemoryUtil.memCopy(instance.address(), instances.address(count - 1), VkAccelerationStructureInstanceKHR.SIZEOF);
+            dirty.mark(count - 1);
+            changed = true;
 
             return id;
         }
 
+        protected void setStructureReference(int id, long deviceAddress) {
+            instances.get(id2loc[id]).accelerationStructureReference(deviceAddress);
+            dirty.mark(id2loc[id]);
+            changed = true;
+        }
+
         protected void free(int id) {
             if (id < 0) {
                 throw new IllegalArgumentException("Invalid id");
             }
 
             freeIds.enqueue(id);
+            changed = true;
 
             int loc = id2loc[id];
             id2loc[id] = -1;
@@ -337,50 +497,72 @@ public class AccelerationTLASManager {
                 id2loc[lastId] = loc;
                 MemoryUtil.memCopy(instances.address(count), instances.address(loc),
                         VkAccelerationStructureInstanceKHR.SIZEOF);
+                dirty.mark(loc);
             }
         }
 
-        private final List<VkAccelerationStructureInstanceKHR> ephemeralInstances = new ArrayList<>();
+        // The ephemeral instances of the current frame are packed into a native scratch block that is kept across
+        // frames and only ever grows, it is copied into the upload stream before the next frame reuses it
+        private long ephemeralScratch = 0;
+        private int ephemeralCapacity = 0;
+        private int ephemeralCount = 0;
 
         public void addEphemeralInstance(VkAccelerationStructureInstanceKHR asi) {
-            var newASI = VkAccelerationStructureInstanceKHR.calloc();
-            newASI.set(asi);
-            ephemeralInstances.add(newASI);
+            if (ephemeralCount == ephemeralCapacity) {
+                ephemeralCapacity = Math.max(ephemeralCapacity * 2, 256);
+                ephemeralScratch = MemoryUtil.nmemRealloc(ephemeralScratch,
+                        (long) ephemeralCapacity * VkAccelerationStructureInstanceKHR.SIZEOF);
+            }
+            MemoryUtil.memCopy(asi.address(), ephemeralScratch + (long) ephemeralCount * VkAccelerationStructureInstanceKHR.SIZEOF,
+                    VkAccelerationStructureInstanceKHR.SIZEOF);
+            ephemeralCount++;
         }
 
-        public Pair<VRef<VBuffer>, Integer> getInstanceBuffer() {
-            int count = this.count + ephemeralInstances.size();
-
-            long size = VkAccelerationStructureInstanceKHR.SIZEOF * (long) count;
-            if (size == 0) {
-                size = VkAccelerationStructureInstanceKHR.SIZEOF;
+        public InstanceBuffer getInstanceBuffer(VCmdBuff cmd) {
+            int ephemeralCount = this.ephemeralCount;
+            this.ephemeralCount = 0;
+            int count = this.count + ephemeralCount;
+            boolean changed = this.changed;
+            this.changed = false;
+            long stride = VkAccelerationStructureInstanceKHR.SIZEOF;
+
+            if (count > gpuCapacity || gpuInstances == null) {
+                int newCapacity = roundUpPow2(Math.max(count, 1024));
+                if (gpuInstances != null) {
+                    // Frames in flight may still build from the old buffer
+                    cmd.addBufferRef(gpuInstances);
+                    gpuInstances.close();
+                }
+                gpuInstances = context.memory.createBuffer(stride * newCapacity,
+                        VK_BUFFER_USAGE_TRANSFER_DST_BIT
+                                | VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR
+                                | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT,
+                        VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, 16, 0);
+                gpuInstances.get().setDebugUtilsObjectName("TLAS Instance Buffer");
+                gpuCapacity = newCapacity;
+                dirty.mark(0, this.count);
             }
-            var data = context.memory.createBuffer(size,
-                    VK_BUFFER_USAGE_TRANSFER_DST_BIT
-                            | VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR
-                            | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT,
-                    VK_MEMORY_HEAP_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT,
-                    0, VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
-            data.get().setDebugUtilsObjectName("TLAS Instance Buffer");
 
-            long persistentSize = VkAccelerationStructureInstanceKHR.SIZEOF * (long) this.count;
-            long ptr = data.get().map();
-            if (persistentSize > 0) {
-                MemoryUtil.memCopy(this.instances.address(0), ptr, persistentSize);
+            if (dirty.isEmpty() && ephemeralCount == 0) {
+                return new InstanceBuffer(gpuInstances.addRef(), count, ephemeralCount, changed);
             }
 
-            ptr = ptr + persistentSize;
-            for (var asi : ephemeralInstances) {
-                MemoryUtil.memCopy(asi.address(), ptr, VkAccelerationStructureInstanceKHR.SIZEOF);
-                ptr += VkAccelerationStructureInstanceKHR.SIZEOF;
-                asi.free();
+            // The previous tlas build may still be reading the locations that are about to be overwritten
+            cmd.encodeBufferBarrier(gpuInstances, 0, VK_WHOLE_SIZE,
+                    VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR, VK_PIPELINE_STAGE_TRANSFER_BIT);
+
+            dirty.drain(this.count, (start, end) -> cmd.encodeDataUpload(context.upload, instances.address(start),
+                    gpuInstances, start * stride, (end - start) * stride));
+
+            if (ephemeralCount != 0) {
+                cmd.encodeDataUpload(context.upload, ephemeralScratch, gpuInstances, this.count * stride,
+                        stride * ephemeralCount);
             }
-            ephemeralInstances.clear();
 
-            data.get().unmap();
-            data.get().flush();
+            cmd.encodeBufferBarrier(gpuInstances, 0, VK_WHOLE_SIZE,
+                    VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_ACCELERATION_STRUCTURE_BUILD_BIT_KHR);
 
-            return new Pair<>(data, count);
+            return new InstanceBuffer(gpuInstances.addRef(), count, ephemeralCount, changed);
         }
     }
 
@@ -388,7 +570,17 @@ public class AccelerationTLASManager {
         private final TlasPointerArena arena = new TlasPointerArena(30000);
         private final ConcurrentLinkedDeque<AccelerationBlasBuilder.BLASBuildResult> sectionUpdates = new ConcurrentLinkedDeque<>();
         private final ConcurrentLinkedDeque<RenderSection> sectionRemovals = new ConcurrentLinkedDeque<>();
-        private final Map<ChunkSectionPos, VRef<Holder>> activeSections = new HashMap<>();
+        private final ConcurrentLinkedDeque<AccelerationBlasBuilder.BLASCompactionResult> sectionCompactions = new ConcurrentLinkedDeque<>();
+        private final List<VRef<VAccelerationStructure>> retiredStructures = new ArrayList<>();
+        private final Map<BlasKey, VRef<Holder>> activeSections = new HashMap<>();
+        // Build time of the newest result applied for each section, older results are stale
+        private final Map<ChunkSectionPos, Long> sectionTimes = new HashMap<>();
+        // Merged blas's of groups of sections, the section blas's of the members stay in activeSections without an
+        // instance so that the group can be split again as soon as one of them changes
+        private final Map<BlasKey, VRef<Holder>> activeGroups = new HashMap<>();
+        private final Map<BlasKey, List<BlasKey>> groupMembers = new HashMap<>();
+        private final Map<BlasKey, BlasKey> memberGroups = new HashMap<>();
+        private final BlasContentCache<Holder, VAccelerationStructure> contentCache = new BlasContentCache<>();
         private final ArrayList<DescriptorUpdateJob> descriptorUpdateJobs = new ArrayList<>();
         private VRef<VDescriptorSetLayout> geometryBufferSetLayout;
         private VRef<VDescriptorSet> geometryBufferDescSet = null;
@@ -430,97 +622,157 @@ public class AccelerationTLASManager {
         }
 
         @Override
-        public Pair<VRef<VBuffer>, Integer> getInstanceBuffer() {
+        public InstanceBuffer getInstanceBuffer(VCmdBuff cmd) {
             HashSet<RenderSection> removals = new HashSet<>();
             {
                 RenderSection section;
                 while ((section = sectionRemovals.poll()) != null) {
                     removals.add(section);
+                    sectionTimes.remove(section.getPosition());
                 }
             }
 
             // Filter updates to only the latest
-            HashMap<ChunkSectionPos, AccelerationBlasBuilder.BLASBuildResult> updates = new HashMap<>();
+            HashMap<BlasKey, AccelerationBlasBuilder.BLASBuildResult> updates = new HashMap<>();
+            HashMap<BlasKey, AccelerationBlasBuilder.BLASBuildResult> groupUpdates = new HashMap<>();
+            // Categories that the newest build of their section no longer has geometry in
+            HashSet<BlasKey> staleCategories = new HashSet<>();
             {
                 AccelerationBlasBuilder.BLASBuildResult result;
                 while ((result = sectionUpdates.poll()) != null) {
                     var data = result.data();
+                    if (data.group() != null) {
+                        // The members are checked once the section updates have been applied
+                        var previous = groupUpdates.put(data.key(), result);
+                        if (previous != null) {
+                            discard(previous);
+                        }
+                        continue;
+                    }
                     var section = data.section();
-                    if (removals.contains(section)) {
-                        // Already removed, close the buffers and continue
-                        result.structure().close();
-                        data.geometryBuffer().close();
-                    } else {
-                        // We process the updates sequentially
-                        // Older updates are overwritten
-                        var key = section.getPosition();
-                        if (updates.containsKey(key)) {
-                            var prev = updates.get(key);
-                            prev.structure().close();
-                            prev.data().geometryBuffer().close();
+                    var pos = section.getPosition();
+                    Long latest = sectionTimes.get(pos);
+                    if (removals.contains(section) || (latest != null && data.time() < latest)) {
+                        // Already removed or superseded, close the buffers and continue
+                        discard(result);
+                        continue;
+                    }
+                    if (latest == null || data.time() > latest) {
+                        sectionTimes.put(pos, data.time());
+                        for (var category : GeometryRayFlags.values()) {
+                            if ((data.sectionCategories() & category.mask()) == 0) {
+                                var key = new BlasKey(pos, category);
+                                var stale = updates.remove(key);
+                                if (stale != null) {
+                                    discard(stale);
+                                }
+                                staleCategories.add(key);
+                            }
                         }
-                        updates.put(key, result);
                     }
+                    // We process the updates sequentially
+                    // Older updates are overwritten
+                    var key = data.key();
+                    if (updates.containsKey(key)) {
+                        discard(updates.get(key));
+                    }
+                    updates.put(key, result);
                 }
             }
 
             // Process removals
             for (var section : removals) {
-                var prev = activeSections.remove(section.getPosition());
+                for (var category : GeometryRayFlags.values()) {
+                    staleCategories.add(new BlasKey(section.getPosition(), category));
+                }
+            }
+            // Groups are split before any of their members change
+            for (var key : staleCategories) {
+                splitGroup(key);
+            }
+            for (var key : updates.keySet()) {
+                splitGroup(key);
+            }
+            for (var key : staleCategories) {
+                var prev = activeSections.remove(key);
                 if (prev != null) {
-                    free(prev.get().id);
+                    freeInstance(prev.get());
                     prev.close();
                 }
             }
 
+            // Reuse results take the cached structure with the same positions, which may belong to another section,
+            // if there is none (anymore) the result is sent back to be built after all
+            // The references are taken up front as closing the previous holders below can drop cache entries
+            Map<BlasKey, VRef<VAccelerationStructure>> reusedStructures = new HashMap<>();
+            for (var it = updates.entrySet().iterator(); it.hasNext(); ) {
+                var entry = it.next();
+                var data = entry.getValue().data();
+                if (!entry.getValue().isReuse()) {
+                    continue;
+                }
+                var structure = contentCache.lookup(data.geometryHash(), data.bufferOffsets().size());
+                if (structure == null) {
+                    it.remove();
+                    entry.getValue().rebuild().run();
+                } else {
+                    reusedStructures.put(entry.getKey(), structure);
+                }
+            }
+
             int newGeoms = 0;
+            int groupWrites = 0;
             for (var entry : updates.entrySet()) {
                 newGeoms += entry.getValue().data().bufferOffsets().size();
             }
+            for (var entry : groupUpdates.entrySet()) {
+                newGeoms += entry.getValue().data().bufferOffsets().size();
+                groupWrites += entry.getValue().data().group().members().size();
+            }
             resizeBindlessSet(Integer.max(arena.maxIndex + newGeoms, 1024));
 
             // Process updates
-            if (!updates.isEmpty() || !descriptorUpdateJobs.isEmpty()) {
-                var dub = new DescriptorUpdateBuilder(context, updates.size() + descriptorUpdateJobs.size());
+            if (!updates.isEmpty() || !groupUpdates.isEmpty() || !descriptorUpdateJobs.isEmpty()) {
+                var dub = new DescriptorUpdateBuilder(context, updates.size() + groupWrites + descriptorUpdateJobs.size());
                 dub.set(geometryBufferDescSet);
 
                 for (var entry : updates.entrySet()) {
                     var result = entry.getValue();
                     var data = result.data();
                     var section = data.section();
-                    var posKey = section.getPosition();
+                    var key = entry.getKey();
 
-                    var prevHolder = activeSections.remove(posKey);
+                    var prevHolder = activeSections.remove(key);
+                    var structure = result.isReuse() ? reusedStructures.get(key) : result.structure();
+                    structure = contentCache.share(data.geometryHash(), data.bufferOffsets().size(), structure);
                     if (prevHolder != null) {
-                        free(prevHolder.get().id);
+                        freeInstance(prevHolder.get());
                         prevHolder.close();
                     }
 
                     int numGeometriesInInstance = data.bufferOffsets().size();
                     int geometryIndex = arena.allocate(numGeometriesInInstance);
 
-                    // Add the geometry buffer to the descriptor set (the set retains another reference)
-                    dub.buffer(0, geometryIndex, data.geometryBuffer(), data.bufferOffsets());
-                    data.geometryBuffer().close();
-
-                    int id;
-                    try (var stack = stackPush()) {
-                        var asi = VkAccelerationStructureInstanceKHR.calloc(stack)
-                                .mask(~0)
-                                .instanceCustomIndex(geometryIndex)
-                                .accelerationStructureReference(result.structure().get().deviceAddress);
-                        asi.transform()
-                                .matrix(new Matrix4x3f()
-                                        .translate(section.getOriginX(), section.getOriginY(),
-                                                section.getOriginZ())
-                                        .getTransposed(stack.mallocFloat(12)));
-
-                        id = alloc(asi);
+                    // Add the geometry ranges to the descriptor set (the set retains a reference to the arena buffer,
+                    // the holder owns the range itself)
+                    var geometry = data.geometry().get();
+                    List<Long> arenaOffsets = new ArrayList<>(numGeometriesInInstance);
+                    for (long offset : data.bufferOffsets()) {
+                        arenaOffsets.add(geometry.offset + offset);
                     }
+                    dub.buffer(0, geometryIndex, geometry.buffer(), arenaOffsets);
+
+                    int id = allocInstance(section.getPosition(), data.category(), geometryIndex, structure.get());
 
-                    // Ownership of result.structure() is transferred to the holder
-                    var holder = Holder.create(id, geometryIndex, numGeometriesInInstance, result.structure(), this);
-                    activeSections.put(section.getPosition(), holder);
+                    // Ownership of the structure is transferred to the holder
+                    var holder = Holder.create(id, geometryIndex, numGeometriesInInstance, structure, data.geometry(), data.geometryHash(), this);
+                    holder.get().time = data.time();
+                    contentCache.addUser(data.geometryHash(), numGeometriesInInstance, holder.get());
+                    activeSections.put(key, holder);
+                }
+
+                for (var entry : groupUpdates.entrySet()) {
+                    applyGroup(dub, entry.getKey(), entry.getValue());
                 }
 
                 for (var job : descriptorUpdateJobs) {
@@ -532,7 +784,140 @@ public class AccelerationTLASManager {
                 dub.apply();
             }
 
-            return super.getInstanceBuffer();
+            // Swap compacted structures into every instance that still shares the uncompacted version, if the
+            // structure is no longer in use the compacted structure is simply dropped
+            {
+                AccelerationBlasBuilder.BLASCompactionResult compaction;
+                while ((compaction = sectionCompactions.poll()) != null) {
+                    var data = compaction.data();
+                    if (data.group() != null) {
+                        var holder = activeGroups.get(data.key());
+                        if (holder != null && holder.get().structure.get() == compaction.source().get()) {
+                            retiredStructures.add(holder.get().structure);
+                            holder.get().structure = compaction.compacted().addRef();
+                            setStructureReference(holder.get().id, holder.get().structure.get().deviceAddress);
+                        }
+                        compaction.compacted().close();
+                        compaction.source().close();
+                        continue;
+                    }
+                    var entry = contentCache.get(data.geometryHash(), data.bufferOffsets().size());
+                    if (entry != null && entry.structure.get() == compaction.source().get()) {
+                        retiredStructures.add(entry.structure);
+                        entry.structure = compaction.compacted().addRef();
+                        for (var holder : entry.users) {
+                            retiredStructures.add(holder.structure);
+                            holder.structure = compaction.compacted().addRef();
+                            if (holder.id >= 0) {
+                                setStructureReference(holder.id, holder.structure.get().deviceAddress);
+                            }
+                        }
+                    }
+                    compaction.compacted().close();
+                    compaction.source().close();
+                }
+            }
+
+            return super.getInstanceBuffer(cmd);
+        }
+
+        // Drops a result that was superseded before it was applied
+        private void discard(AccelerationBlasBuilder.BLASBuildResult result) {
+            if (!result.isReuse()) {
+                result.structure().close();
+            }
+            result.data().release();
+        }
+
+        private int allocInstance(ChunkSectionPos origin, GeometryRayFlags category, int geometryIndex, VAccelerationStructure structure) {
+            try (var stack = stackPush()) {
+                var asi = VkAccelerationStructureInstanceKHR.calloc(stack)
+                        .mask(category.mask())
+                        .instanceCustomIndex(geometryIndex)
+                        .accelerationStructureReference(structure.deviceAddress);
+                asi.transform()
+                        .matrix(new Matrix4x3f()
+                                .translate(origin.getMinX(), origin.getMinY(), origin.getMinZ())
+                                .getTransposed(stack.mallocFloat(12)));
+                return alloc(asi);
+            }
+        }
+
+        // Members of a merged group have no instance of their own
+        private void freeInstance(Holder holder) {
+            if (holder.id >= 0) {
+                free(holder.id);
+                holder.id = -1;
+            }
+        }
+
+        // Replaces the instances of the members of a group with the instance of its merged blas, unless a member has
+        // changed since the group was merged, then the group is sent back to be merged again later
+        private void applyGroup(DescriptorUpdateBuilder dub, BlasKey key, AccelerationBlasBuilder.BLASBuildResult result) {
+            var data = result.data();
+            var group = data.group();
+            List<BlasKey> members = new ArrayList<>(group.members().size());
+            for (var member : group.members()) {
+                var memberKey = new BlasKey(member.section().getPosition(), key.category());
+                var holder = activeSections.get(memberKey);
+                if (holder == null || holder.get().time != member.time()) {
+                    discard(result);
+                    result.rebuild().run();
+                    return;
+                }
+                members.add(memberKey);
+            }
+
+            splitGroup(key);
+            for (var memberKey : members) {
+                splitGroup(memberKey);
+            }
+
+            int numGeometries = data.bufferOffsets().size();
+            int geometryIndex = arena.allocate(numGeometries);
+            int element = geometryIndex;
+            for (var member : group.members()) {
+                var geometry = member.geometry().get();
+                List<Long> arenaOffsets = new ArrayList<>(member.bufferOffsets().size());
+                for (long offset : member.bufferOffsets()) {
+                    arenaOffsets.add(geometry.offset + offset);
+                }
+                dub.buffer(0, element, geometry.buffer(), arenaOffsets);
+                element += arenaOffsets.size();
+            }
+
+            int id = allocInstance(group.origin(), key.category(), geometryIndex, result.structure().get());
+            // The member holders keep their geometry alive for as long as the group is in use
+            var holder = Holder.create(id, geometryIndex, numGeometries, result.structure(), null, 0, this);
+            data.release();
+            for (var memberKey : members) {
+                freeInstance(activeSections.get(memberKey).get());
+                memberGroups.put(memberKey, key);
+            }
+            groupMembers.put(key, members);
+            activeGroups.put(key, holder);
+        }
+
+        // Removes the merged blas of the group the key belongs to (or is) and gives its members their own instances back
+        private void splitGroup(BlasKey key) {
+            var groupKey = key.merged() ? key : memberGroups.get(key);
+            if (groupKey == null) {
+                return;
+            }
+            var holder = activeGroups.remove(groupKey);
+            if (holder == null) {
+                return;
+            }
+            freeInstance(holder.get());
+            holder.close();
+            for (var memberKey : groupMembers.remove(groupKey)) {
+                memberGroups.remove(memberKey);
+                var member = activeSections.get(memberKey);
+                if (member != null && member.get().id < 0) {
+                    member.get().id = allocInstance(memberKey.position(), memberKey.category(), member.get().geometryIndex,
+                            member.get().structure.get());
+                }
+            }
         }
 
         private void arenaFree(int index, int count) {
@@ -550,6 +935,10 @@ public class AccelerationTLASManager {
             sectionRemovals.add(section);
         }
 
+        public void compacted(AccelerationBlasBuilder.BLASCompactionResult result) {
+            sectionCompactions.add(result);
+        }
+
         public void addEphemeralInstance(VCmdBuff cmd, VkAccelerationStructureInstanceKHR asi, final VRef<VAccelerationStructure> structure, final VRef<VBuffer> geometryBuffer, List<Long> bufferOffsets) {
             if (bufferOffsets.isEmpty()) {
                 return;
@@ -561,9 +950,13 @@ public class AccelerationTLASManager {
             asi.accelerationStructureReference(structure.get().deviceAddress);
             asi.instanceCustomIndex(geometryIndex);
 
-            addEphemeralInstance(asi);
+            if (entityInstances != null) {
+                entityInstances.addEphemeralInstance(asi);
+            } else {
+                addEphemeralInstance(asi);
+            }
 
-            var holder = Holder.create(-1, geometryIndex, numGeometries, structure.addRef(), this);
+            var holder = Holder.create(-1, geometryIndex, numGeometries, structure.addRef(), null, 0, this);
             cmd.moveRefGeneric(holder.addRefGeneric());
             holder.close();
 
@@ -579,27 +972,41 @@ public class AccelerationTLASManager {
             // A holder holds (duh) a section and its associated data
             // The data might currently be in use by the gpu
 
-            final int id;
+            // -1 while the section is part of a merged group
+            int id;
+            // Build time of the section blas
+            long time;
             final TLASSectionManager manager;
             final int geometryIndex;
             final int numGeometries;
-            final VRef<VAccelerationStructure> structure;
-
-            private Holder(int id, int geometryIndex, int numGeometries, VRef<VAccelerationStructure> structure, TLASSectionManager manager) {
+            // Replaced once the structure has been compacted in the background
+            VRef<VAccelerationStructure> structure;
+            // Terrain geometry range in the arena, null for ephemeral instances
+            final VRef<BufferArenaPool.ArenaAllocation> geometry;
+            // Hash of the vertex positions the structure was built from
+            final long geometryHash;
+
+            private Holder(int id, int geometryIndex, int numGeometries, VRef<VAccelerationStructure> structure, VRef<BufferArenaPool.ArenaAllocation> geometry, long geometryHash, TLASSectionManager manager) {
                 this.id = id;
                 this.geometryIndex = geometryIndex;
                 this.numGeometries = numGeometries;
                 this.structure = structure;
+                this.geometry = geometry;
+                this.geometryHash = geometryHash;
                 this.manager = manager;
             }
 
-            public static VRef<Holder> create(int id, int geometryIndex, int numGeometries, VRef<VAccelerationStructure> structure, TLASSectionManager manager) {
-                return new VRef<>(new Holder(id, geometryIndex, numGeometries, structure, manager));
+            public static VRef<Holder> create(int id, int geometryIndex, int numGeometries, VRef<VAccelerationStructure> structure, VRef<BufferArenaPool.ArenaAllocation> geometry, long geometryHash, TLASSectionManager manager) {
+                return new VRef<>(new Holder(id, geometryIndex, numGeometries, structure, geometry, geometryHash, manager));
             }
 
             @Override
             protected void free() {
                 structure.close();
+                if (geometry != null) {
+                    geometry.close();
+                    manager.contentCache.removeUser(geometryHash, numGeometries, this);
+                }
                 // This removes it from the geometry buffer & descriptor set
                 manager.arenaFree(geometryIndex, numGeometries);
             }
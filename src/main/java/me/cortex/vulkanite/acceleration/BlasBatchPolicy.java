@@ -0,0 +1,85 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.lib.other.VUtil;
+
+//Decides how many blas jobs go into a single build batch, fills a batch up to a quad count and transient byte budget
+// using the sizes reported by vkGetAccelerationStructureBuildSizesKHR
+class BlasBatchPolicy {
+    private static final long ALIGNMENT = 256;
+
+    private final long maxQuads;
+    private final long maxBytes;
+    private final int maxJobs;
+
+    private int jobs;
+    private long quads;
+    private long scratchBytes;
+    private long structureBytes;
+    private long inputBytes;
+
+    BlasBatchPolicy(long maxQuads, long maxBytes, int maxJobs) {
+        this.maxQuads = maxQuads;
+        this.maxBytes = maxBytes;
+        this.maxJobs = maxJobs;
+    }
+
+    void reset() {
+        jobs = 0;
+        quads = 0;
+        scratchBytes = 0;
+        structureBytes = 0;
+        inputBytes = 0;
+    }
+
+    //Returns true if the job was accepted into the batch, the first job of a batch is always accepted so oversized
+    // jobs still make progress
+    boolean tryAdd(long jobQuads, long jobScratch, long jobStructure, long jobInput) {
+        jobScratch = VUtil.alignUp(jobScratch, ALIGNMENT);
+        jobStructure = VUtil.alignUp(jobStructure, ALIGNMENT);
+        if (jobs != 0) {
+            if (jobs >= maxJobs) {
+                return false;
+            }
+            if (quads + jobQuads > maxQuads) {
+                return false;
+            }
+            if (totalBytes() + jobScratch + jobStructure + jobInput > maxBytes) {
+                return false;
+            }
+        }
+        jobs++;
+        quads += jobQuads;
+        scratchBytes += jobScratch;
+        structureBytes += jobStructure;
+        inputBytes += jobInput;
+        return true;
+    }
+
+    boolean isFull() {
+        return jobs >= maxJobs || quads >= maxQuads || totalBytes() >= maxBytes;
+    }
+
+    long totalBytes() {
+        return scratchBytes + structureBytes + inputBytes;
+    }
+
+    int jobs() {
+        return jobs;
+    }
+
+    long quads() {
+        return quads;
+    }
+
+    long scratchBytes() {
+        return scratchBytes;
+    }
+
+    long structureBytes() {
+        return structureBytes;
+    }
+
+    long inputBytes() {
+        return inputBytes;
+    }
+}
@@ -0,0 +1,88 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.lib.base.VObject;
+import me.cortex.vulkanite.lib.base.VRef;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Content addressed blas's, sections whose section local positions hash the same share one structure and only differ
+// in their instance transform, the cache keeps its own reference to each structure (S) for as long as it has users (U)
+//Only contains() is safe to call from other threads, everything else belongs to the thread that owns the users
+class BlasContentCache<U, S extends VObject> {
+    record Key(long geometryHash, int geometryCount) {}
+
+    static final class Entry<U, S extends VObject> {
+        VRef<S> structure;
+        final Set<U> users = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private Entry(VRef<S> structure) {
+            this.structure = structure;
+        }
+    }
+
+    private final Map<Key, Entry<U, S>> entries = new ConcurrentHashMap<>();
+    private volatile int users = 0;
+
+    boolean contains(long geometryHash, int geometryCount) {
+        return entries.containsKey(new Key(geometryHash, geometryCount));
+    }
+
+    Entry<U, S> get(long geometryHash, int geometryCount) {
+        return entries.get(new Key(geometryHash, geometryCount));
+    }
+
+    //Returns a new reference to the cached structure, or null if there is none
+    VRef<S> lookup(long geometryHash, int geometryCount) {
+        var entry = get(geometryHash, geometryCount);
+        return entry == null ? null : entry.structure.addRef();
+    }
+
+    //Takes ownership of a freshly built structure, if an equal structure is already cached the new one is closed and
+    // a reference to the cached one is returned instead
+    VRef<S> share(long geometryHash, int geometryCount, VRef<S> structure) {
+        var key = new Key(geometryHash, geometryCount);
+        var entry = entries.get(key);
+        if (entry != null) {
+            structure.close();
+            return entry.structure.addRef();
+        }
+        entries.put(key, new Entry<>(structure.addRef()));
+        return structure;
+    }
+
+    void addUser(long geometryHash, int geometryCount, U user) {
+        var entry = get(geometryHash, geometryCount);
+        if (entry == null) {
+            throw new IllegalStateException("No cached structure for the user");
+        }
+        if (entry.users.add(user)) {
+            users++;
+        }
+    }
+
+    //The cached structure is dropped with its last user
+    void removeUser(long geometryHash, int geometryCount, U user) {
+        var key = new Key(geometryHash, geometryCount);
+        var entry = entries.get(key);
+        if (entry == null || !entry.users.remove(user)) {
+            return;
+        }
+        users--;
+        if (entry.users.isEmpty()) {
+            entries.remove(key);
+            entry.structure.close();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int users() {
+        return users;
+    }
+}
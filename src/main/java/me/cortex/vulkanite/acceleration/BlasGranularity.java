@@ -0,0 +1,28 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.jellysquid.mods.sodium.client.render.chunk.region.RenderRegion;
+import net.minecraft.util.math.ChunkSectionPos;
+
+//Decides how many sections share a blas, sections mapped to the same group are merged into one blas (and tlas
+// instance) per category once none of them has changed for a while, a group that is edited is split back into its
+// per section blas's until it is stable again
+public interface BlasGranularity {
+    //Every section keeps its own blas
+    BlasGranularity SECTION = section -> null;
+    //The sections of a sodium render region share a blas
+    BlasGranularity REGION = section -> ChunkSectionPos.from(
+            section.getSectionX() & -RenderRegion.REGION_WIDTH,
+            section.getSectionY() & -RenderRegion.REGION_HEIGHT,
+            section.getSectionZ() & -RenderRegion.REGION_LENGTH);
+
+    //The origin of the group the section is merged into, null if it is never merged
+    ChunkSectionPos group(ChunkSectionPos section);
+
+    static BlasGranularity byName(String name) {
+        return switch (name) {
+            case "section" -> SECTION;
+            case "region" -> REGION;
+            default -> throw new IllegalArgumentException("Unknown blas granularity " + name);
+        };
+    }
+}
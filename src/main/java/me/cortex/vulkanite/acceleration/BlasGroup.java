@@ -0,0 +1,16 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.lib.base.VRef;
+import me.cortex.vulkanite.lib.memory.BufferArenaPool;
+import me.jellysquid.mods.sodium.client.render.chunk.RenderSection;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.util.List;
+
+//The sections merged into a group blas, the geometries of the blas are those of the members in order, each translated
+// by the offset of its section from origin
+public record BlasGroup(ChunkSectionPos origin, List<Member> members) {
+    //time is the build time of the section blas the member geometry belongs to, geometry is a reference of its own
+    public record Member(RenderSection section, long time, VRef<BufferArenaPool.ArenaAllocation> geometry, List<Long> bufferOffsets) {
+    }
+}
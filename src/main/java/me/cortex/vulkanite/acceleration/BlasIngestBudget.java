@@ -0,0 +1,77 @@
+package me.cortex.vulkanite.acceleration;
+
+//Byte budget for the device memory of blas jobs between geometry ingest and the end of their build, once it is used
+// up the ingest worker waits for builds to retire instead of allocating more geometry
+class BlasIngestBudget {
+    private final long limit;
+    private long used;
+    private long stalls;
+    private long stallNanos;
+
+    BlasIngestBudget(long limit) {
+        this.limit = limit;
+    }
+
+    //A single oversized job is let through when nothing else is charged, otherwise it could never make progress
+    synchronized boolean tryAcquire(long bytes) {
+        if (used != 0 && used + bytes > limit) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    //Waits until the bytes fit, running whileWaiting (outside of the lock) before every check and at least every
+    // pollMillis while waiting, so that memory the waiting thread itself has yet to free gets freed
+    void acquire(long bytes, Runnable whileWaiting, long pollMillis) {
+        whileWaiting.run();
+        synchronized (this) {
+            if (tryAcquire(bytes)) {
+                return;
+            }
+            stalls++;
+        }
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                whileWaiting.run();
+                synchronized (this) {
+                    if (tryAcquire(bytes)) {
+                        return;
+                    }
+                    wait(pollMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (this) {
+                stallNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    synchronized void release(long bytes) {
+        used -= bytes;
+        if (used < 0) {
+            throw new IllegalStateException("Released more bytes than were acquired");
+        }
+        notifyAll();
+    }
+
+    long limit() {
+        return limit;
+    }
+
+    synchronized long used() {
+        return used;
+    }
+
+    synchronized long stalls() {
+        return stalls;
+    }
+
+    synchronized long stallNanos() {
+        return stallNanos;
+    }
+}
@@ -0,0 +1,131 @@
+package me.cortex.vulkanite.acceleration;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+//Orders pending blas jobs by distance from the camera, with aging so that far away jobs still make progress
+// Aging is linear in the time a job has been waiting, so the effective priority distance - rate * (now - enqueued)
+// orders the same as distance + rate * enqueued, this means the heap only needs rebuilding when the camera moves
+//There is at most one queued job per section (K), a newer job for a section supersedes the queued one, superseded
+// entries are left in the heap marked as cancelled and skipped when polled
+class BlasJobScheduler<K, T> {
+    static final class Entry<K, T> {
+        private final K section;
+        private final T job;
+        private final double x;
+        private final double y;
+        private final double z;
+        private final long enqueueTime;
+        private double priority;
+        private boolean cancelled;
+
+        private Entry(K section, T job, double x, double y, double z, long enqueueTime) {
+            this.section = section;
+            this.job = job;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.enqueueTime = enqueueTime;
+        }
+
+        T job() {
+            return job;
+        }
+
+        long enqueueTime() {
+            return enqueueTime;
+        }
+    }
+
+    private final double agingPerNano;
+    private final double reprioritizeDistanceSq;
+
+    private PriorityQueue<Entry<K, T>> queue = new PriorityQueue<>(Comparator.comparingDouble(e -> e.priority));
+    private final Map<K, Entry<K, T>> queued = new HashMap<>();
+    //Camera position the keys are computed with, only updated once the camera has moved far enough
+    private double cameraX, cameraY, cameraZ;
+
+    //agingRate is in blocks of distance per second of waiting
+    BlasJobScheduler(double agingRate, double reprioritizeDistance) {
+        this.agingPerNano = agingRate / 1e9;
+        this.reprioritizeDistanceSq = reprioritizeDistance * reprioritizeDistance;
+    }
+
+    //Returns the job that was superseded by this one, or null if the section had no queued job
+    // the queue size only changes when nothing was superseded
+    synchronized T add(K section, T job, double x, double y, double z, long now) {
+        var entry = new Entry<>(section, job, x, y, z, now);
+        var previous = queued.put(section, entry);
+        push(entry);
+        if (previous == null) {
+            return null;
+        }
+        previous.cancelled = true;
+        return previous.job;
+    }
+
+    //Adds the job only if the section has no queued job, returns false otherwise
+    synchronized boolean addIfAbsent(K section, T job, double x, double y, double z, long now) {
+        if (queued.containsKey(section)) {
+            return false;
+        }
+        add(section, job, x, y, z, now);
+        return true;
+    }
+
+    //Puts back an entry that was polled but not consumed, it keeps its original enqueue time
+    // returns false if a newer job for the section was added in the meantime, the entry is then not requeued
+    synchronized boolean requeue(Entry<K, T> entry) {
+        if (queued.putIfAbsent(entry.section, entry) != null) {
+            return false;
+        }
+        push(entry);
+        return true;
+    }
+
+    synchronized Entry<K, T> poll() {
+        Entry<K, T> entry;
+        while ((entry = queue.poll()) != null && entry.cancelled);
+        if (entry != null) {
+            queued.remove(entry.section);
+        }
+        return entry;
+    }
+
+    synchronized boolean contains(K section) {
+        return queued.containsKey(section);
+    }
+
+    synchronized int size() {
+        return queued.size();
+    }
+
+    synchronized void setCamera(double x, double y, double z) {
+        double dx = x - cameraX, dy = y - cameraY, dz = z - cameraZ;
+        if (dx * dx + dy * dy + dz * dz < reprioritizeDistanceSq) {
+            return;
+        }
+        cameraX = x;
+        cameraY = y;
+        cameraZ = z;
+        var entries = new ArrayList<>(queued.values());
+        for (var entry : entries) {
+            entry.priority = priority(entry);
+        }
+        queue = new PriorityQueue<>(Math.max(entries.size(), 1), queue.comparator());
+        queue.addAll(entries);
+    }
+
+    private void push(Entry<K, T> entry) {
+        entry.priority = priority(entry);
+        queue.add(entry);
+    }
+
+    private double priority(Entry<K, T> entry) {
+        double dx = entry.x - cameraX, dy = entry.y - cameraY, dz = entry.z - cameraZ;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz) + entry.enqueueTime * agingPerNano;
+    }
+}
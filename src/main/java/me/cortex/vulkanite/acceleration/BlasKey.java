@@ -0,0 +1,11 @@
+package me.cortex.vulkanite.acceleration;
+
+import net.minecraft.util.math.ChunkSectionPos;
+
+//Identifies one blas of a section, a section has a blas for every instance category it has geometry in, merged is
+// set for the blas of a whole group of sections (see BlasGranularity) whose origin is position
+record BlasKey(ChunkSectionPos position, GeometryRayFlags category, boolean merged) {
+    BlasKey(ChunkSectionPos position, GeometryRayFlags category) {
+        this(position, category, false);
+    }
+}
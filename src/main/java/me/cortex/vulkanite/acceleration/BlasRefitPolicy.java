@@ -0,0 +1,136 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.lib.base.VObject;
+import me.cortex.vulkanite.lib.base.VRef;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//Decides whether a blas job refits the last structure built for its key (K) instead of building a new one
+//A key is only built with ALLOW_UPDATE once it is rebuilt within the hot window of its previous build, so static
+// sections dont pay for updatability, a refit then needs the geometry layout (per geometry quad count, flags and
+// stride) to be unchanged and the structure to have been refit fewer than maxRefits times in a row, after that it is
+// rebuilt so that the bvh doesnt degrade from positions drifting away from the ones it was built for
+//The policy keeps its own reference to the last updatable structure (S) of each key, which is the one refits read from
+//Keys that go the hot window without a rebuild have stopped changing and are dropped along with their structure, and
+// at most maxSources structures are kept, so the policy never pins the memory of structures nothing else uses
+//Only forget() is safe to call from other threads, everything else belongs to the blas worker
+class BlasRefitPolicy<K, S extends VObject> {
+    enum Decision {
+        BUILD,
+        BUILD_UPDATABLE,
+        REFIT,
+    }
+
+    private static final class Entry<S extends VObject> {
+        private long[] layout;
+        private long lastBuild;
+        private int refits;
+        //Null if the last build was not updatable
+        private VRef<S> structure;
+    }
+
+    private final int maxRefits;
+    private final long hotWindowNanos;
+    private final int maxSources;
+    //In the order the keys were last built, oldest first
+    private final LinkedHashMap<K, Entry<S>> entries = new LinkedHashMap<>();
+    private final ConcurrentLinkedQueue<K> forgotten = new ConcurrentLinkedQueue<>();
+    private int sources = 0;
+
+    BlasRefitPolicy(int maxRefits, long hotWindowNanos, int maxSources) {
+        this.maxRefits = maxRefits;
+        this.hotWindowNanos = hotWindowNanos;
+        this.maxSources = maxSources;
+    }
+
+    Decision decide(K key, long[] layout, long now) {
+        processForgotten();
+        expire(now);
+        var entry = entries.get(key);
+        if (maxRefits <= 0 || entry == null) {
+            return Decision.BUILD;
+        }
+        if (entry.structure != null && entry.refits < maxRefits && Arrays.equals(entry.layout, layout)) {
+            return Decision.REFIT;
+        }
+        return now - entry.lastBuild <= hotWindowNanos ? Decision.BUILD_UPDATABLE : Decision.BUILD;
+    }
+
+    //Returns a new reference to the structure a refit of the key reads from
+    VRef<S> source(K key) {
+        var entry = entries.get(key);
+        if (entry == null || entry.structure == null) {
+            throw new IllegalStateException("No structure to refit from");
+        }
+        return entry.structure.addRef();
+    }
+
+    //Records a structure that was built for the key, the policy takes its own reference if it is updatable
+    void built(K key, long[] layout, Decision decision, VRef<S> structure, long now) {
+        var entry = entries.remove(key);
+        if (entry == null) {
+            entry = new Entry<>();
+        }
+        entries.put(key, entry);
+        entry.layout = layout;
+        entry.lastBuild = now;
+        entry.refits = decision == Decision.REFIT ? entry.refits + 1 : 0;
+        setStructure(entry, decision == Decision.BUILD ? null : structure.addRef());
+        //Past the cap the least recently built keys lose their structure, their next build is an updatable one
+        for (var oldest : entries.values()) {
+            if (sources <= maxSources) {
+                break;
+            }
+            setStructure(oldest, null);
+        }
+    }
+
+    //The structure was compacted, refits read from the compacted copy from now on
+    void compacted(K key, S source, VRef<S> compacted) {
+        var entry = entries.get(key);
+        if (entry != null && entry.structure != null && entry.structure.get() == source) {
+            setStructure(entry, compacted.addRef());
+        }
+    }
+
+    //The key has no structure anymore, its next build starts from scratch
+    void forget(K key) {
+        forgotten.add(key);
+    }
+
+    private void processForgotten() {
+        K key;
+        while ((key = forgotten.poll()) != null) {
+            var entry = entries.remove(key);
+            if (entry != null) {
+                setStructure(entry, null);
+            }
+        }
+    }
+
+    //Drops the keys that were last built before the hot window, their next build is a plain one either way
+    private void expire(long now) {
+        var iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            if (now - entry.lastBuild <= hotWindowNanos) {
+                break;
+            }
+            setStructure(entry, null);
+            iterator.remove();
+        }
+    }
+
+    private void setStructure(Entry<S> entry, VRef<S> structure) {
+        if (entry.structure != null) {
+            entry.structure.close();
+            sources--;
+        }
+        entry.structure = structure;
+        if (structure != null) {
+            sources++;
+        }
+    }
+}
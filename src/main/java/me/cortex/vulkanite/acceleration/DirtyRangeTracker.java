@@ -0,0 +1,49 @@
+package me.cortex.vulkanite.acceleration;
+
+import java.util.BitSet;
+
+//Tracks which slots of a persistent array changed since it was last uploaded
+//Dirty slots closer together than mergeGap are uploaded as one range, copying a few clean slots is cheaper than
+// recording another copy command
+class DirtyRangeTracker {
+    @FunctionalInterface
+    interface RangeConsumer {
+        void accept(int start, int end);
+    }
+
+    private final BitSet dirty = new BitSet();
+    private final int mergeGap;
+
+    DirtyRangeTracker(int mergeGap) {
+        this.mergeGap = mergeGap;
+    }
+
+    void mark(int slot) {
+        dirty.set(slot);
+    }
+
+    void mark(int start, int end) {
+        dirty.set(start, end);
+    }
+
+    boolean isEmpty() {
+        return dirty.isEmpty();
+    }
+
+    //Calls consumer with the merged [start, end) ranges below limit and clears the tracker, slots at or above limit
+    // are no longer in use and are dropped
+    void drain(int limit, RangeConsumer consumer) {
+        int start = dirty.nextSetBit(0);
+        while (start != -1 && start < limit) {
+            int end = dirty.nextClearBit(start);
+            int next = dirty.nextSetBit(end);
+            while (next != -1 && next < limit && next - end <= mergeGap) {
+                end = dirty.nextClearBit(next);
+                next = dirty.nextSetBit(end);
+            }
+            consumer.accept(start, Math.min(end, limit));
+            start = next;
+        }
+        dirty.clear();
+    }
+}
@@ -152,9 +152,13 @@ public class EntityBlasBuilder {
         var geometryInfos = VkAccelerationStructureGeometryKHR.calloc(geometries.size(), stack);
         int i = 0;
         for (var geometry : geometries) {
-            var indexBuffer = SharedQuadVkIndexBuffer.getIndexBuffer(ctx, cmdBuff, geometry.quadCount);
+            //Like the terrain builds the 16 bit buffer is asked for at its full size, so it is only ever generated
+            // once and the render thread usually finds it already made by the terrain builder
+            int indexType = SharedQuadVkIndexBuffer.indexType(geometry.quadCount);
+            var indexBuffer = SharedQuadVkIndexBuffer.getIndexBuffer(ctx, cmdBuff,
+                    indexType == VK_INDEX_TYPE_UINT16 ? SharedQuadVkIndexBuffer.MAX_UINT16_QUADS : geometry.quadCount,
+                    indexType);
             VkDeviceOrHostAddressConstKHR indexData = indexBuffer.get().deviceAddressConst();
-            int indexType = SharedQuadVkIndexBuffer.TYPE;
 
             VkDeviceOrHostAddressConstKHR vertexData = VkDeviceOrHostAddressConstKHR.calloc(stack).deviceAddress(geometry.address);
             int vertexFormat = VK_FORMAT_R32G32B32_SFLOAT;
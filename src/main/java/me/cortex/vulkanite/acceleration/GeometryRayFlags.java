@@ -1,5 +1,10 @@
 package me.cortex.vulkanite.acceleration;
 
+import me.jellysquid.mods.sodium.client.render.chunk.terrain.DefaultTerrainRenderPasses;
+import me.jellysquid.mods.sodium.client.render.chunk.terrain.TerrainRenderPass;
+
+//Instance masks of the tlas instances, exposed to shaders as VULKANITE_MASK_<NAME> so that rays can cull whole
+// categories of geometry with their cull mask
 public enum GeometryRayFlags {
     OPAQUE(1),
     TRANSPARENT(1 << 1),
@@ -11,4 +16,13 @@ public enum GeometryRayFlags {
     GeometryRayFlags(int i) {
         flag = i;
     }
+
+    public int mask() {
+        return flag;
+    }
+
+    //The instance category the geometry of a terrain pass goes into, every category of a section is its own blas
+    public static GeometryRayFlags ofPass(TerrainRenderPass pass) {
+        return pass == DefaultTerrainRenderPasses.TRANSLUCENT ? TRANSPARENT : OPAQUE;
+    }
 }
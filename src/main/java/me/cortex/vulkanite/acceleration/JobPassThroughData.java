@@ -1,11 +1,37 @@
 package me.cortex.vulkanite.acceleration;
 
 import me.cortex.vulkanite.lib.base.VRef;
-import me.cortex.vulkanite.lib.memory.VBuffer;
+import me.cortex.vulkanite.lib.memory.BufferArenaPool;
 import me.jellysquid.mods.sodium.client.render.chunk.RenderSection;
 
 import java.util.List;
 
-public record JobPassThroughData(RenderSection section, long time, VRef<VBuffer> geometryBuffer, List<Long> bufferOffsets) {
+//bufferOffsets are relative to the start of the geometry allocation, geometryHash identifies the vertex positions the
+// blas is built from
+//category is the instance category of the blas, sectionCategories the masks of all the categories the build of the
+// section has geometry in, blas's of the other categories are removed when this is applied
+//For the blas of a group of sections, group holds the members, section is the first member, geometry is null and
+// bufferOffsets are the offsets of all the members relative to their own geometry
+public record JobPassThroughData(RenderSection section, long time, VRef<BufferArenaPool.ArenaAllocation> geometry, List<Long> bufferOffsets,
+                                 long geometryHash, GeometryRayFlags category, int sectionCategories, BlasGroup group) {
+    public JobPassThroughData(RenderSection section, long time, VRef<BufferArenaPool.ArenaAllocation> geometry, List<Long> bufferOffsets,
+                              long geometryHash, GeometryRayFlags category, int sectionCategories) {
+        this(section, time, geometry, bufferOffsets, geometryHash, category, sectionCategories, null);
+    }
 
+    BlasKey key() {
+        return group == null ? new BlasKey(section.getPosition(), category) : new BlasKey(group.origin(), category, true);
+    }
+
+    //Closes the references to the geometry the blas is built from
+    void release() {
+        if (geometry != null) {
+            geometry.close();
+        }
+        if (group != null) {
+            for (var member : group.members()) {
+                member.geometry().close();
+            }
+        }
+    }
 }
@@ -5,66 +5,128 @@ import me.cortex.vulkanite.lib.base.VRef;
 import me.cortex.vulkanite.lib.cmd.VCmdBuff;
 import me.cortex.vulkanite.lib.memory.VBuffer;
 import org.lwjgl.system.MemoryUtil;
-import org.lwjgl.vulkan.VkDeviceOrHostAddressConstKHR;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.nio.ByteOrder;
 
 import static org.lwjgl.vulkan.KHRAccelerationStructure.VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR;
 import static org.lwjgl.vulkan.VK10.*;
 import static org.lwjgl.vulkan.VK12.VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT;
 
+//Shared quad (0 1 2, 0 2 3) index buffers, a 16 bit one for geometry with at most 65536 vertices (nearly every
+// section) and a 32 bit one for everything larger (entity batches)
+//The buffers grow geometrically so that regrowing is rare, a buffer that is replaced stays alive for as long as
+// command buffers that used it hold a reference
 public class SharedQuadVkIndexBuffer {
-    public static final int TYPE = VK_INDEX_TYPE_UINT32;
-    private static VRef<VBuffer> indexBuffer = null;
-    private static int currentQuadCount = 0;
+    public static final int MAX_UINT16_QUADS = (1 << 16) / 4;
 
-    public synchronized static VRef<VBuffer> getIndexBuffer(VContext context, VCmdBuff uploaCmdBuff, int quadCount) {
-        if (currentQuadCount < quadCount) {
-            makeNewIndexBuffer(context, uploaCmdBuff, quadCount);
+    private static final class Shared {
+        private final int indexType;
+        private final int maxQuads;
+        private VRef<VBuffer> buffer = null;
+        private int quadCount = 0;
+
+        private Shared(int indexType, int maxQuads) {
+            this.indexType = indexType;
+            this.maxQuads = maxQuads;
+        }
+    }
+
+    private static final Shared UINT16 = new Shared(VK_INDEX_TYPE_UINT16, MAX_UINT16_QUADS);
+    private static final Shared UINT32 = new Shared(VK_INDEX_TYPE_UINT32, Integer.MAX_VALUE / 6);
+
+    //Reused host memory the indices are generated into before being staged
+    private static long scratch = 0;
+    private static long scratchSize = 0;
+
+    //The smallest index type that can address all the vertices of quadCount quads
+    public static int indexType(int quadCount) {
+        return quadCount <= MAX_UINT16_QUADS ? VK_INDEX_TYPE_UINT16 : VK_INDEX_TYPE_UINT32;
+    }
+
+    public synchronized static VRef<VBuffer> getIndexBuffer(VContext context, VCmdBuff uploaCmdBuff, int quadCount, int indexType) {
+        var shared = indexType == VK_INDEX_TYPE_UINT16 ? UINT16 : UINT32;
+        if (quadCount > shared.maxQuads) {
+            throw new IllegalArgumentException(quadCount + " quads dont fit in a " + (indexType == VK_INDEX_TYPE_UINT16 ? 16 : 32) + " bit index buffer");
+        }
+        if (shared.quadCount < quadCount) {
+            makeNewIndexBuffer(context, uploaCmdBuff, shared, (int) Math.min(Math.max((long) quadCount, shared.quadCount * 2L), shared.maxQuads));
         }
 
-        return indexBuffer.addRef();
+        return shared.buffer.addRef();
     }
 
-    private static void makeNewIndexBuffer(VContext context, VCmdBuff uploaCmdBuff, int quadCount) {
-        ByteBuffer buffer = genQuadIdxs(quadCount);
+    //Runs on the thread that needs the larger buffer under the lock of getIndexBuffer, for entity builds that is the
+    // render thread, buffers grow at least 2x so this is rare, a 32 bit buffer of 262144 quads took 0.4-0.7ms to generate
+    // (QuadIndexBenchmark)
+    private static void makeNewIndexBuffer(VContext context, VCmdBuff uploaCmdBuff, Shared shared, int quadCount) {
+        long size = quadCount * 6L * indexSize(shared.indexType);
+        if (scratchSize < size) {
+            scratch = MemoryUtil.nmemRealloc(scratch, size);
+            scratchSize = size;
+        }
+        genQuadIdxs(scratch, quadCount, shared.indexType);
+
+        if (shared.buffer != null) {
+            shared.buffer.close();
+        }
         //TODO: dont harcode VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR and VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT
-        indexBuffer = context.memory.createBuffer(buffer.remaining(),
+        shared.buffer = context.memory.createBuffer(size,
                 VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT
                         | VK_BUFFER_USAGE_ACCELERATION_STRUCTURE_BUILD_INPUT_READ_ONLY_BIT_KHR
                         | VK_BUFFER_USAGE_SHADER_DEVICE_ADDRESS_BIT,
                 VK_MEMORY_HEAP_DEVICE_LOCAL_BIT);
-        indexBuffer.get().setDebugUtilsObjectName("Geometry Index Buffer");
+        shared.buffer.get().setDebugUtilsObjectName(shared.indexType == VK_INDEX_TYPE_UINT16 ? "Geometry Index Buffer 16" : "Geometry Index Buffer 32");
 
-        uploaCmdBuff.encodeDataUpload(context.memory, MemoryUtil.memAddress(buffer), indexBuffer, 0,
-                buffer.remaining());
+        //The indices are copied into the upload stream straight away so the scratch memory can be reused
+        uploaCmdBuff.encodeDataUpload(context.upload, scratch, shared.buffer, 0, size);
 
-        currentQuadCount = quadCount;
+        shared.quadCount = quadCount;
     }
 
-    public static ByteBuffer genQuadIdxs(int quadCount) {
-        //short[] idxs = {0, 1, 2, 0, 2, 3};
-
-        int vertexCount = quadCount * 4;
-        int indexCount = vertexCount * 3 / 2;
-        ByteBuffer buffer = MemoryUtil.memAlloc(indexCount * Integer.BYTES);
-        IntBuffer idxs = buffer.asIntBuffer();
-        //short[] idxs = new short[indexCount];
-
-        int j = 0;
-        for(int i = 0; i < vertexCount; i += 4) {
-
-            idxs.put(j, i);
-            idxs.put(j + 1, (i + 1));
-            idxs.put(j + 2, (i + 2));
-            idxs.put(j + 3, (i));
-            idxs.put(j + 4, (i + 2));
-            idxs.put(j + 5, (i + 3));
+    private static int indexSize(int indexType) {
+        return indexType == VK_INDEX_TYPE_UINT16 ? Short.BYTES : Integer.BYTES;
+    }
 
-            j += 6;
+    //Writes the indices of quadCount quads to ptr
+    //16 bit indices are written two quads (12 indices) at a time as three 64 bit words, the words of the next two quads
+    // are the same ones with 8 added to every 16 bit lane, so a pair of quads costs three adds and three stores, this
+    // assumes a little endian host
+    //32 bit indices are written one at a time, the buffer is large enough that this is bound by memory bandwidth and
+    // packing them was measured to be no faster (QuadIndexBenchmark)
+    public static void genQuadIdxs(long ptr, int quadCount, int indexType) {
+        if (indexType == VK_INDEX_TYPE_UINT16) {
+            if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+                throw new IllegalStateException("Quad index generation assumes a little endian host");
+            }
+            //Indices 0 1 2 0 | 2 3 4 5 | 6 4 6 7 of quads 0 and 1
+            long a = 0L | 1L << 16 | 2L << 32 | 0L << 48;
+            long b = 2L | 3L << 16 | 4L << 32 | 5L << 48;
+            long c = 6L | 4L << 16 | 6L << 32 | 7L << 48;
+            long step = 8 * 0x0001_0001_0001_0001L;
+            for (int pair = 0; pair < quadCount >> 1; pair++) {
+                MemoryUtil.memPutLong(ptr, a);
+                MemoryUtil.memPutLong(ptr + 8, b);
+                MemoryUtil.memPutLong(ptr + 16, c);
+                a += step;
+                b += step;
+                c += step;
+                ptr += 24;
+            }
+            if ((quadCount & 1) != 0) {
+                MemoryUtil.memPutLong(ptr, a);
+                MemoryUtil.memPutInt(ptr + 8, (int) b);
+            }
+        } else {
+            for (long quad = 0; quad < quadCount; quad++) {
+                int i = (int) (quad * 4);
+                MemoryUtil.memPutInt(ptr, i);
+                MemoryUtil.memPutInt(ptr + 4, i + 1);
+                MemoryUtil.memPutInt(ptr + 8, i + 2);
+                MemoryUtil.memPutInt(ptr + 12, i);
+                MemoryUtil.memPutInt(ptr + 16, i + 2);
+                MemoryUtil.memPutInt(ptr + 20, i + 3);
+                ptr += 24;
+            }
         }
-
-        return buffer;
     }
 }
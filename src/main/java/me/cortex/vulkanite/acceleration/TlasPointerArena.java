@@ -0,0 +1,90 @@
+package me.cortex.vulkanite.acceleration;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+//Best fit range allocator, free ranges are coalesced with their neighbours when freed, maxIndex is the end of the
+// highest allocated range which is the start of the free range at the end of the arena
+class TlasPointerArena {
+    private final int size;
+    //Start -> end of every free range
+    private final TreeMap<Integer, Integer> freeByStart = new TreeMap<>();
+    //Free ranges ordered by length then start, packed as length << 32 | start
+    private final TreeSet<Long> freeBySize = new TreeSet<>();
+    public int maxIndex = 0;
+
+    TlasPointerArena(int size) {
+        this.size = size * 3;
+        addFree(0, this.size);
+    }
+
+    public int allocate(int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        var fit = freeBySize.ceiling((long) count << 32);
+        if (fit == null) {
+            long largest = freeBySize.isEmpty() ? 0 : freeBySize.last() >>> 32;
+            throw new IllegalStateException("No free range of " + count + " slots, the largest is " + largest + " of " + size);
+        }
+        int pos = (int) (long) fit;
+        int end = removeFree(pos);
+        if (pos + count < end) {
+            addFree(pos + count, end);
+        }
+        maxIndex = Math.max(maxIndex, pos + count);
+        return pos;
+    }
+
+    public void free(int pos, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int start = pos;
+        int end = pos + count;
+        var prev = freeByStart.floorEntry(pos);
+        if (prev != null && prev.getValue() > pos) {
+            throw new IllegalStateException("Range is already free");
+        }
+        var following = freeByStart.ceilingKey(pos);
+        if (following != null && following < end) {
+            throw new IllegalStateException("Range overlaps a free range");
+        }
+        if (prev != null && prev.getValue() == pos) {
+            start = prev.getKey();
+            removeFree(start);
+        }
+        var next = freeByStart.get(end);
+        if (next != null) {
+            removeFree(end);
+            end = next;
+        }
+        addFree(start, end);
+
+        if (end == size) {
+            maxIndex = start;
+        }
+    }
+
+    //Total number of slots, the arena is created with 3 slots per requested entry
+    int capacity() {
+        return size;
+    }
+
+    //Number of separate free ranges, adjacent free ranges are always coalesced so this is the number of gaps
+    int freeRangeCount() {
+        return freeByStart.size();
+    }
+
+    private void addFree(int start, int end) {
+        freeByStart.put(start, end);
+        freeBySize.add((long) (end - start) << 32 | start);
+    }
+
+    //Returns the end of the free range
+    private int removeFree(int start) {
+        int end = freeByStart.remove(start);
+        freeBySize.remove((long) (end - start) << 32 | start);
+        return end;
+    }
+}
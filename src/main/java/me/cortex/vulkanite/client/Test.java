@@ -142,35 +142,35 @@ public class Test {
                 VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
         context.cmd.executeWait(cmd -> {
-            cmd.encodeDataUpload(context.memory, srcBeegThing, fmlBuffer0, 0, 2L << 30L);
+            cmd.encodeDataUpload(context.upload, srcBeegThing, fmlBuffer0, 0, 2L << 30L);
         });
 
         var fmlBuffer1 = context.memory.createBuffer(2L << 30L,
                 VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
         context.cmd.executeWait(cmd -> {
-            cmd.encodeDataUpload(context.memory, srcBeegThing, fmlBuffer1, 0, 2L << 30L);
+            cmd.encodeDataUpload(context.upload, srcBeegThing, fmlBuffer1, 0, 2L << 30L);
         });
 
         var fmlBuffer2 = context.memory.createBuffer(2L << 30L,
                 VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
         context.cmd.executeWait(cmd -> {
-            cmd.encodeDataUpload(context.memory, srcBeegThing, fmlBuffer2, 0, 2L << 30L);
+            cmd.encodeDataUpload(context.upload, srcBeegThing, fmlBuffer2, 0, 2L << 30L);
         });
 
         var fmlBuffer3 = context.memory.createBuffer(2L << 30L,
                 VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
         context.cmd.executeWait(cmd -> {
-            cmd.encodeDataUpload(context.memory, srcBeegThing, fmlBuffer3, 0, 2L << 30L);
+            cmd.encodeDataUpload(context.upload, srcBeegThing, fmlBuffer3, 0, 2L << 30L);
         });
 
         var fmlBuffer4 = context.memory.createBuffer(2L << 30L,
                 VK_BUFFER_USAGE_TRANSFER_DST_BIT | VK_BUFFER_USAGE_STORAGE_BUFFER_BIT,
                 VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
         context.cmd.executeWait(cmd -> {
-            cmd.encodeDataUpload(context.memory, srcBeegThing, fmlBuffer4, 0, 2L << 30L);
+            cmd.encodeDataUpload(context.upload, srcBeegThing, fmlBuffer4, 0, 2L << 30L);
         });
 
 
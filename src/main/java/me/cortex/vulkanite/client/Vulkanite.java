@@ -8,6 +8,7 @@ import me.cortex.vulkanite.lib.descriptors.VDescriptorPool;
 import me.cortex.vulkanite.lib.descriptors.VDescriptorSetLayout;
 import me.jellysquid.mods.sodium.client.render.chunk.RenderSection;
 import me.jellysquid.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.util.Util;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.vulkan.*;
@@ -105,6 +106,8 @@ public class Vulkanite {
 
     public void renderTick() {
         ctx.sync.checkFences();
+        var camera = MinecraftClient.getInstance().gameRenderer.getCamera().getPos();
+        accelerationManager.setCameraPosition(camera.x, camera.y, camera.z);
         accelerationManager.updateTick();
     }
 
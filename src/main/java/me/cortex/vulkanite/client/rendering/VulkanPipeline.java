@@ -125,8 +125,8 @@ public class VulkanPipeline {
                 ctx.cmd.executeWait(cmd -> {
                     cmd.encodeImageTransition(placeholderSpecular, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_ASPECT_COLOR_BIT, 1);
                     cmd.encodeImageTransition(placeholderNormals, VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_ASPECT_COLOR_BIT, 1);
-                    cmd.encodeImageUpload(ctx.memory, MemoryUtil.memAddress(initZeros), placeholderSpecular, initZeros.capacity() * 4L, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
-                    cmd.encodeImageUpload(ctx.memory, MemoryUtil.memAddress(initNormals), placeholderNormals, initNormals.capacity() * 4L, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+                    cmd.encodeImageUpload(ctx.upload, MemoryUtil.memAddress(initZeros), placeholderSpecular, initZeros.capacity() * 4L, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+                    cmd.encodeImageUpload(ctx.upload, MemoryUtil.memAddress(initNormals), placeholderNormals, initNormals.capacity() * 4L, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
                     cmd.encodeImageTransition(placeholderSpecular, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, VK_IMAGE_ASPECT_COLOR_BIT, 1);
                     cmd.encodeImageTransition(placeholderNormals, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, VK_IMAGE_ASPECT_COLOR_BIT, 1);
                 });
@@ -176,6 +176,7 @@ public class VulkanPipeline {
             var commonSetExpected = new ShaderReflection.Set(new ShaderReflection.Binding[]{
                     new ShaderReflection.Binding("", 0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 0, false),
                     new ShaderReflection.Binding("", 1, VK_DESCRIPTOR_TYPE_ACCELERATION_STRUCTURE_KHR, 0, false),
+                    new ShaderReflection.Binding("", 2, VK_DESCRIPTOR_TYPE_ACCELERATION_STRUCTURE_KHR, 0, false),
                     new ShaderReflection.Binding("", 3, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 0, false),
                     new ShaderReflection.Binding("", 4, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 0, false),
                     new ShaderReflection.Binding("", 5, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 0, false),
@@ -281,6 +282,12 @@ public class VulkanPipeline {
             return;
         }
 
+        // Without a split tlas the entities are in the terrain tlas, which is then bound in both places
+        var entityTlas = accelerationManager.getEntityTLAS();
+        if (entityTlas == null) {
+            entityTlas = tlas.addRef();
+        }
+
         var outImgs = vgOutImgs.stream().map(i -> new VRef<VImage>(i.get())).toList();
 
         var out = ctx.sync.createSharedBinarySemaphore();
@@ -362,6 +369,7 @@ public class VulkanPipeline {
                             .set(commonSet)
                             .uniform(0, uboBuffer.buffer(), uboBuffer.offset(), uboBuffer.size())
                             .acceleration(1, tlas)
+                            .acceleration(2, entityTlas)
                             .imageSampler(3, blockAtlasView.getView(), sampler)
                             .imageSampler(4,
                                     blockAtlasNormalView.getView() != null ? blockAtlasNormalView.getView()
@@ -438,6 +446,7 @@ public class VulkanPipeline {
 
         cmdRef.close();
         tlas.close();
+        entityTlas.close();
 
         out.get().glWait(new int[0], outImgsGlIds, outImgsGlLayouts);
         // glFlush();
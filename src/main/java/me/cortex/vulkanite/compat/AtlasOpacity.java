@@ -0,0 +1,67 @@
+package me.cortex.vulkanite.compat;
+
+import java.nio.ByteBuffer;
+
+//Which texels of the block atlas are fully opaque, read back whenever the atlas is uploaded, chunk build threads use it
+// to find the cutout quads that can never be alpha tested away
+//Only texels with an alpha of 255 count as opaque, that way the result does not depend on the cutoff the shaders use
+public class AtlasOpacity {
+    private static volatile AtlasOpacity blockAtlas;
+
+    private final int width;
+    private final int height;
+    //One bit per texel, rows are padded to whole words
+    private final int rowWords;
+    private final long[] opaque;
+
+    private AtlasOpacity(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rowWords = (width + 63) >>> 6;
+        this.opaque = new long[rowWords * height];
+    }
+
+    //rgba holds width * height rgba8 texels, row by row
+    public static AtlasOpacity fromRgba(ByteBuffer rgba, int width, int height) {
+        var result = new AtlasOpacity(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (rgba.get(((y * width + x) << 2) + 3) == (byte) 0xFF) {
+                    result.opaque[y * result.rowWords + (x >>> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static AtlasOpacity getBlockAtlas() {
+        return blockAtlas;
+    }
+
+    public static void setBlockAtlas(AtlasOpacity opacity) {
+        blockAtlas = opacity;
+    }
+
+    //Whether every texel of the texture coordinate rectangle [u0, u1] x [v0, v1] is opaque
+    public boolean isOpaque(float u0, float v0, float u1, float v1) {
+        int x0 = clamp((int) Math.floor(u0 * width), width);
+        int y0 = clamp((int) Math.floor(v0 * height), height);
+        int x1 = Math.max(x0 + 1, Math.min((int) Math.ceil(u1 * width), width));
+        int y1 = Math.max(y0 + 1, Math.min((int) Math.ceil(v1 * height), height));
+        for (int y = y0; y < y1; y++) {
+            int row = y * rowWords;
+            for (int x = x0; x < x1; x = (x & ~63) + 64) {
+                int end = Math.min(x1, (x & ~63) + 64);
+                long mask = (end - x == 64 ? -1L : ((1L << (end - x)) - 1)) << (x & 63);
+                if ((opaque[row + (x >>> 6)] & mask) != mask) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(value, size - 1));
+    }
+}
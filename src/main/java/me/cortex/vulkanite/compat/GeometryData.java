@@ -1,6 +1,18 @@
 package me.cortex.vulkanite.compat;
 
-import me.jellysquid.mods.sodium.client.util.NativeBuffer;
+import java.util.List;
 
-public record GeometryData(int quadCount) {
+//positionHash only covers the vertex positions, in upload order, and how they are split into parts, so equal hashes
+// mean an identical blas
+//parts are the blas geometries the pass is split into, lod is the low detail geometry used for far away sections, null
+// if lods are disabled or would not be any simpler
+public record GeometryData(int quadCount, long positionHash, List<GeometryPart> parts, LodMesher.Result lod) {
+    //Number of quads the blas geometries are built from
+    public int blasQuadCount() {
+        int quads = 0;
+        for (var part : parts) {
+            quads += part.blasQuadCount();
+        }
+        return quads;
+    }
 }
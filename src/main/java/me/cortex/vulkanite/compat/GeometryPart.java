@@ -0,0 +1,21 @@
+package me.cortex.vulkanite.compat;
+
+import org.lwjgl.system.MemoryUtil;
+
+//One blas geometry made from (some of) the quads of a pass, quads are the indices of the pass quads it is made of in
+// upload order, null for all of them in their original order
+//merged is set when the blas is built from merged quads instead of the quads themselves
+public record GeometryPart(int[] quads, int quadCount, boolean opaque, QuadMerger.Result merged) {
+    //Number of quads the blas geometry is built from
+    public int blasQuadCount() {
+        return merged == null ? quadCount : merged.quadCount();
+    }
+
+    //Copies the vertices of the quads of the part from the pass vertices at src to dst, in upload order
+    public void writeVertices(long src, long dst, int stride) {
+        long quadBytes = 4L * stride;
+        for (int i = 0; i < quadCount; i++) {
+            MemoryUtil.memCopy(src + (quads == null ? i : quads[i]) * quadBytes, dst + i * quadBytes, quadBytes);
+        }
+    }
+}
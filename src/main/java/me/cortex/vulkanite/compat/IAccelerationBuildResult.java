@@ -11,4 +11,7 @@ public interface IAccelerationBuildResult {
     Map<TerrainRenderPass, GeometryData> getAccelerationGeometryData();
     ChunkVertexType getVertexFormat();
     void setVertexFormat(ChunkVertexType format);
+    //Set once the output has been handed to vulkanite, the output is then deleted by vulkanite instead of sodium
+    void setUploadPending(boolean pending);
+    boolean isUploadPending();
 }
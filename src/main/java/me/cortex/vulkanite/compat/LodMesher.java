@@ -0,0 +1,136 @@
+package me.cortex.vulkanite.compat;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+//Builds the low detail geometry far away sections are traced against, the section is split into cubic cells and every
+// cell containing a quad becomes a box, only the box faces that dont touch another box in the section are emitted
+//A quad is put into the cell just behind its front face, the faces of a box copy all the attributes of the first quad
+// that was put into the cell, only the position and normal are replaced, so hit shaders dont need to know about lods
+//The padding holds an identity merged quad remap (every box face covers just itself, see QuadMerger.writeRemapped) so
+// that hit shaders built with VULKANITE_MERGED_QUADS resolve lod faces as well
+public class LodMesher {
+    //vertices is in the same format as the sodium vertices, positionHash is computed like SodiumResultAdapter does
+    public record Result(int quadCount, byte[] vertices, long positionHash) {
+    }
+
+    private static final int NORMAL_OFFSET = 28;
+    //Sodium encodes positions as (p + 8) * 2048 with p relative to the section origin
+    private static final int POSITION_ORIGIN = 8;
+    private static final int POSITION_SCALE = 2048;
+    //How far behind the face of a quad the point deciding its cell is, in blocks
+    private static final float INSET = 0.25f;
+    private static final int[][] DIRECTIONS = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+
+    //cellSize is in blocks and divides 16, returns null if the lod would not have fewer quads than the input
+    public static Result build(long address, int quadCount, int stride, int cellSize) {
+        if (cellSize <= 0 || 16 % cellSize != 0) {
+            throw new IllegalArgumentException("Lod cell size " + cellSize + " does not divide 16");
+        }
+        if (stride != QuadMerger.VERTEX_STRIDE) {
+            return null;
+        }
+        int cells = 16 / cellSize;
+        //Index of the quad whose attributes the box of the cell uses, -1 if the cell is empty
+        int[] representative = new int[cells * cells * cells];
+        Arrays.fill(representative, -1);
+        float[] p = new float[12];
+        for (int quad = 0; quad < quadCount; quad++) {
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long base = address + (long) (quad * 4 + vertex) * stride;
+                for (int c = 0; c < 3; c++) {
+                    p[vertex * 3 + c] = Short.toUnsignedInt(MemoryUtil.memGetShort(base + c * 2L)) / (float) POSITION_SCALE - POSITION_ORIGIN;
+                }
+            }
+            //Front faces wind counter clockwise so the normal points out of the block the quad belongs to
+            float e1x = p[3] - p[0], e1y = p[4] - p[1], e1z = p[5] - p[2];
+            float e2x = p[6] - p[0], e2y = p[7] - p[1], e2z = p[8] - p[2];
+            float nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            float inset = length == 0 ? 0 : INSET / length;
+            int cell = 0;
+            for (int c = 0; c < 3; c++) {
+                float center = (p[c] + p[3 + c] + p[6 + c] + p[9 + c]) * 0.25f - (c == 0 ? nx : c == 1 ? ny : nz) * inset;
+                int index = Math.max(0, Math.min(cells - 1, (int) Math.floor(center / cellSize)));
+                cell = cell * cells + index;
+            }
+            if (representative[cell] == -1) {
+                representative[cell] = quad;
+            }
+        }
+
+        int faces = 0;
+        for (int cell = 0; cell < representative.length; cell++) {
+            if (representative[cell] == -1) {
+                continue;
+            }
+            for (var direction : DIRECTIONS) {
+                if (!isCovered(representative, cells, cell, direction)) {
+                    faces++;
+                }
+            }
+        }
+        if (faces >= quadCount) {
+            return null;
+        }
+
+        byte[] vertices = new byte[faces * 4 * stride];
+        var src = MemoryUtil.memByteBuffer(address, quadCount * 4 * stride);
+        var out = ByteBuffer.wrap(vertices).order(ByteOrder.LITTLE_ENDIAN);
+        long hash = faces * 4L;
+        int offset = 0;
+        for (int cell = 0; cell < representative.length; cell++) {
+            if (representative[cell] == -1) {
+                continue;
+            }
+            int[] min = {cell / (cells * cells) * cellSize, cell / cells % cells * cellSize, cell % cells * cellSize};
+            for (var direction : DIRECTIONS) {
+                if (isCovered(representative, cells, cell, direction)) {
+                    continue;
+                }
+                src.get(representative[cell] * 4 * stride, vertices, offset, 4 * stride);
+                int axis = direction[0] != 0 ? 0 : direction[1] != 0 ? 1 : 2;
+                boolean front = direction[axis] > 0;
+                int u = (axis + 1) % 3, v = (axis + 2) % 3;
+                //Corners in the order (u0 v0) (u1 v0) (u1 v1) (u0 v1) face +axis, reversed for the -axis face
+                int[][] corners = {{0, 0}, {1, 0}, {1, 1}, {0, 1}};
+                for (int vertex = 0; vertex < 4; vertex++) {
+                    var corner = corners[front ? vertex : (4 - vertex) % 4];
+                    int[] block = new int[3];
+                    block[axis] = min[axis] + (front ? cellSize : 0);
+                    block[u] = min[u] + corner[0] * cellSize;
+                    block[v] = min[v] + corner[1] * cellSize;
+                    int base = offset + vertex * stride;
+                    long position = 0;
+                    for (int c = 0; c < 3; c++) {
+                        int encoded = (block[c] + POSITION_ORIGIN) * POSITION_SCALE;
+                        out.putShort(base + c * 2, (short) encoded);
+                        position |= (long) encoded << (c * 16);
+                    }
+                    for (int c = 0; c < 3; c++) {
+                        out.put(base + NORMAL_OFFSET + c, (byte) (direction[c] * 127));
+                    }
+                    int face = offset / (4 * stride);
+                    out.put(base + QuadMerger.PAD_A_OFFSET, (byte) (face >>> (vertex * 8)));
+                    out.put(base + QuadMerger.PAD_B_OFFSET, (byte) (1 >>> (vertex * 8)));
+                    hash = SodiumResultAdapter.mixPosition(hash, position);
+                }
+                offset += 4 * stride;
+            }
+        }
+        return new Result(faces, vertices, hash);
+    }
+
+    private static boolean isCovered(int[] representative, int cells, int cell, int[] direction) {
+        int x = cell / (cells * cells) + direction[0];
+        int y = cell / cells % cells + direction[1];
+        int z = cell % cells + direction[2];
+        if (x < 0 || y < 0 || z < 0 || x >= cells || y >= cells || z >= cells) {
+            return false;
+        }
+        return representative[(x * cells + y) * cells + z] != -1;
+    }
+}
@@ -0,0 +1,247 @@
+package me.cortex.vulkanite.compat;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Greedy merging of the quads of a single pass into larger rectangles, only used for the positions the blas is built
+// from, the attributes stay on the original quads
+//Quads that are axis aligned rectangles are grouped by plane (axis, coordinate, facing, material), within a plane they are first
+// merged into strips along u and then the strips with the same u extent are merged along v, two rectangles are only
+// merged when they share a whole edge so the merged rectangle covers exactly the same area
+//Everything else (plants, rotated models, ...) is passed through as is
+//The material of a quad is the sprite (mid texture coordinate) and normal of its first vertex in the iris vertex
+// format, so quads with a different texture or shading normal are never merged with each other
+public class QuadMerger {
+    //Only the iris terrain vertex format (see raylib.glsl) has the padding the remap is written into
+    public static final int VERTEX_STRIDE = 40;
+    static final int PAD_A_OFFSET = 31;
+    static final int PAD_B_OFFSET = 39;
+    private static final int MID_TEX_OFFSET = 20;
+    private static final int NORMAL_OFFSET = 28;
+    //Bytes of a merged vertex, the positions are uploaded as 16 bit xyzw
+    public static final int MERGED_VERTEX_STRIDE = 8;
+
+    //order is the order the original quads are uploaded in (as indices into the pass), merged quad i covers the uploaded quads
+    // [starts[i], starts[i + 1]), positions holds the 4 corners of every merged quad packed as 16 bit x | y << 16 | z << 32
+    public record Result(int quadCount, int[] order, int[] starts, long[] positions) {
+    }
+
+    private static final class Rect {
+        private final int u0, v0;
+        private int u1, v1;
+        //Original quads covered by the rectangle
+        private final List<Integer> quads;
+
+        private Rect(int u0, int v0, int u1, int v1, int quad) {
+            this.u0 = u0;
+            this.v0 = v0;
+            this.u1 = u1;
+            this.v1 = v1;
+            this.quads = new ArrayList<>(1);
+            this.quads.add(quad);
+        }
+    }
+
+    //axis is the axis the plane is perpendicular to, front is whether the quad faces along +axis
+    private record Plane(int axis, int coordinate, boolean front, long material) {
+    }
+
+    private static final Comparator<Rect> BY_ROW = Comparator.<Rect>comparingInt(r -> r.v0)
+            .thenComparingInt(r -> r.v1).thenComparingInt(r -> r.u0);
+    private static final Comparator<Rect> BY_COLUMN = Comparator.<Rect>comparingInt(r -> r.u0)
+            .thenComparingInt(r -> r.u1).thenComparingInt(r -> r.v0);
+
+    //Merges the quads with the given indices (all quadCount quads if null) whose vertices start at address with the
+    // given stride, the first 3 16 bit values of a vertex are its position
+    public static Result merge(long address, int[] quads, int quadCount, int stride) {
+        if (quads != null) {
+            quadCount = quads.length;
+        }
+        //Insertion ordered so that equal input always gives an equal result
+        Map<Plane, List<Rect>> planes = new LinkedHashMap<>();
+        List<Integer> unmerged = new ArrayList<>();
+        int[] position = new int[12];
+        for (int i = 0; i < quadCount; i++) {
+            int quad = quads == null ? i : quads[i];
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long base = address + (long) (quad * 4 + vertex) * stride;
+                for (int c = 0; c < 3; c++) {
+                    position[vertex * 3 + c] = Short.toUnsignedInt(MemoryUtil.memGetShort(base + c * 2L));
+                }
+            }
+            long material = 0;
+            if (stride == VERTEX_STRIDE) {
+                long base = address + (long) quad * 4 * stride;
+                material = Integer.toUnsignedLong(MemoryUtil.memGetInt(base + MID_TEX_OFFSET))
+                        | (MemoryUtil.memGetInt(base + NORMAL_OFFSET) & 0xFFFFFFL) << 32;
+            }
+            if (!addRect(planes, position, material, quad)) {
+                unmerged.add(quad);
+            }
+        }
+
+        List<Rect> merged = new ArrayList<>();
+        List<Plane> mergedPlanes = new ArrayList<>();
+        for (var plane : planes.entrySet()) {
+            var rects = mergeAlong(plane.getValue(), BY_ROW, true);
+            rects = mergeAlong(rects, BY_COLUMN, false);
+            for (var rect : rects) {
+                merged.add(rect);
+                mergedPlanes.add(plane.getKey());
+            }
+        }
+
+        int outQuads = merged.size() + unmerged.size();
+        int[] order = new int[quadCount];
+        int[] starts = new int[outQuads + 1];
+        long[] positions = new long[outQuads * 4];
+        int next = 0;
+        for (int i = 0; i < merged.size(); i++) {
+            var rect = merged.get(i);
+            starts[i] = next;
+            for (int quad : rect.quads) {
+                order[next++] = quad;
+            }
+            writeRect(positions, i * 4, mergedPlanes.get(i), rect);
+        }
+        for (int i = 0; i < unmerged.size(); i++) {
+            int quad = unmerged.get(i);
+            int out = merged.size() + i;
+            starts[out] = next;
+            order[next++] = quad;
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long base = address + (long) (quad * 4 + vertex) * stride;
+                positions[out * 4 + vertex] = MemoryUtil.memGetLong(base) & 0xFFFF_FFFF_FFFFL;
+            }
+        }
+        starts[outQuads] = next;
+        return new Result(outQuads, order, starts, positions);
+    }
+
+    //Adds the quad to its plane if it is an axis aligned rectangle
+    private static boolean addRect(Map<Plane, List<Rect>> planes, int[] p, long material, int quad) {
+        int axis = -1;
+        for (int a = 0; a < 3; a++) {
+            if (p[a] == p[3 + a] && p[a] == p[6 + a] && p[a] == p[9 + a]) {
+                axis = a;
+                break;
+            }
+        }
+        if (axis == -1) {
+            return false;
+        }
+        int u = (axis + 1) % 3, v = (axis + 2) % 3;
+        int u0 = Integer.MAX_VALUE, v0 = Integer.MAX_VALUE, u1 = Integer.MIN_VALUE, v1 = Integer.MIN_VALUE;
+        for (int vertex = 0; vertex < 4; vertex++) {
+            u0 = Math.min(u0, p[vertex * 3 + u]);
+            u1 = Math.max(u1, p[vertex * 3 + u]);
+            v0 = Math.min(v0, p[vertex * 3 + v]);
+            v1 = Math.max(v1, p[vertex * 3 + v]);
+        }
+        if (u0 == u1 || v0 == v1) {
+            return false;
+        }
+        //Every vertex has to be a distinct corner of the bounding rectangle
+        int corners = 0;
+        for (int vertex = 0; vertex < 4; vertex++) {
+            int pu = p[vertex * 3 + u], pv = p[vertex * 3 + v];
+            if ((pu != u0 && pu != u1) || (pv != v0 && pv != v1)) {
+                return false;
+            }
+            corners |= 1 << ((pu == u1 ? 1 : 0) | (pv == v1 ? 2 : 0));
+        }
+        if (corners != 0b1111) {
+            return false;
+        }
+        //Facing from the winding of the first triangle, (u, v, axis) is right handed
+        long e1u = p[3 + u] - p[u], e1v = p[3 + v] - p[v];
+        long e2u = p[6 + u] - p[u], e2v = p[6 + v] - p[v];
+        boolean front = e1u * e2v - e1v * e2u > 0;
+        planes.computeIfAbsent(new Plane(axis, p[axis], front, material), k -> new ArrayList<>()).add(new Rect(u0, v0, u1, v1, quad));
+        return true;
+    }
+
+    //Merges neighbouring rectangles that share a whole edge, along u if alongU otherwise along v
+    private static List<Rect> mergeAlong(List<Rect> rects, Comparator<Rect> order, boolean alongU) {
+        rects.sort(order);
+        List<Rect> out = new ArrayList<>(rects.size());
+        Rect current = null;
+        for (var rect : rects) {
+            if (current != null && (alongU
+                    ? current.v0 == rect.v0 && current.v1 == rect.v1 && current.u1 == rect.u0
+                    : current.u0 == rect.u0 && current.u1 == rect.u1 && current.v1 == rect.v0)) {
+                if (alongU) {
+                    current.u1 = rect.u1;
+                } else {
+                    current.v1 = rect.v1;
+                }
+                current.quads.addAll(rect.quads);
+                continue;
+            }
+            current = rect;
+            out.add(rect);
+        }
+        return out;
+    }
+
+    //Corners in the order (u0 v0) (u1 v0) (u1 v1) (u0 v1) face +axis, reversed for back facing quads
+    private static void writeRect(long[] positions, int offset, Plane plane, Rect rect) {
+        int u = (plane.axis + 1) % 3, v = (plane.axis + 2) % 3;
+        int[][] corners = {{rect.u0, rect.v0}, {rect.u1, rect.v0}, {rect.u1, rect.v1}, {rect.u0, rect.v1}};
+        for (int vertex = 0; vertex < 4; vertex++) {
+            var corner = corners[plane.front ? vertex : (4 - vertex) % 4];
+            long[] xyz = new long[3];
+            xyz[plane.axis] = plane.coordinate;
+            xyz[u] = corner[0];
+            xyz[v] = corner[1];
+            positions[offset + vertex] = xyz[0] | xyz[1] << 16 | xyz[2] << 32;
+        }
+    }
+
+    //Copies the vertices of the quads to dst in upload order, the 2 padding bytes of every vertex of uploaded quad i
+    // (for i < quadCount) are overwritten with the range of uploaded quads covered by merged quad i, the 4 bytes of
+    // pad A hold the first quad and the 4 bytes of pad B the quad count, both little endian
+    public static void writeRemapped(Result result, long src, long dst) {
+        long quadBytes = 4L * VERTEX_STRIDE;
+        for (int i = 0; i < result.order.length; i++) {
+            MemoryUtil.memCopy(src + result.order[i] * quadBytes, dst + i * quadBytes, quadBytes);
+        }
+        for (int i = 0; i < result.quadCount; i++) {
+            int start = result.starts[i];
+            int count = result.starts[i + 1] - start;
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long base = dst + i * quadBytes + (long) vertex * VERTEX_STRIDE;
+                MemoryUtil.memPutByte(base + PAD_A_OFFSET, (byte) (start >>> (vertex * 8)));
+                MemoryUtil.memPutByte(base + PAD_B_OFFSET, (byte) (count >>> (vertex * 8)));
+            }
+        }
+    }
+
+    //Mixes everything the blas and the remap are made of into hash, the merge depends on the material of the quads as
+    // well so equal positions alone dont give an equal result
+    static long hash(long hash, Result result) {
+        hash = SodiumResultAdapter.mixPosition(hash, result.quadCount);
+        for (long position : result.positions) {
+            hash = SodiumResultAdapter.mixPosition(hash, position);
+        }
+        for (int start : result.starts) {
+            hash = SodiumResultAdapter.mixPosition(hash, start);
+        }
+        for (int quad : result.order) {
+            hash = SodiumResultAdapter.mixPosition(hash, quad);
+        }
+        return hash;
+    }
+
+    //Writes the merged positions as 16 bit xyzw vertices
+    public static void writePositions(Result result, long dst) {
+        for (int i = 0; i < result.positions.length; i++) {
+            MemoryUtil.memPutLong(dst + (long) i * MERGED_VERTEX_STRIDE, result.positions[i]);
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package me.cortex.vulkanite.compat;
 
+import me.cortex.vulkanite.acceleration.AccelerationConfig;
 import me.jellysquid.mods.sodium.client.render.chunk.compile.ChunkBuildOutput;
+import me.jellysquid.mods.sodium.client.render.chunk.terrain.DefaultTerrainRenderPasses;
 import me.jellysquid.mods.sodium.client.render.chunk.terrain.TerrainRenderPass;
 import me.jellysquid.mods.sodium.client.util.NativeBuffer;
 import org.lwjgl.system.MemoryUtil;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 //TODO: FIXME! the native buffer is destroyed by the AccelerationBlasBuilder after its copied to the gpu, however
 // on world reload or for whatever reason that the result is destroyed (and not submitted to the blas builder)
 // must find a way to free the native buffers
 public class SodiumResultAdapter {
+    //The texture coordinates of the iris terrain vertex format are 16 bit unorm
+    private static final int TEXTURE_OFFSET = 12;
+    private static final float TEXTURE_SCALE = 1.0f / 65536.0f;
+
     public static void compute(ChunkBuildOutput buildResult) {
         var ebr = (IAccelerationBuildResult) buildResult;
         Map<TerrainRenderPass, GeometryData> map = new HashMap<>();
@@ -26,7 +35,23 @@ public class SodiumResultAdapter {
             if (vertices % 4 != 0)
                 throw new IllegalStateException("Non multiple 4 vertex count");
 
-            map.put(pass.getKey(), new GeometryData(vertices>>2));
+            long address = MemoryUtil.memAddress(vertData.getDirectBuffer());
+            int quads = vertices>>2;
+            boolean solid = pass.getKey() == DefaultTerrainRenderPasses.SOLID;
+            //Split, merged and simplified on the chunk build threads so the ingest worker only has to copy
+            List<GeometryPart> parts = new ArrayList<>(2);
+            var opacity = AtlasOpacity.getBlockAtlas();
+            if (AccelerationConfig.BLAS_OPACITY_SPLIT && opacity != null && pass.getKey() == DefaultTerrainRenderPasses.CUTOUT
+                    && stride == QuadMerger.VERTEX_STRIDE) {
+                splitByOpacity(parts, opacity, address, quads, stride);
+            } else {
+                parts.add(part(address, null, quads, solid, stride));
+            }
+            LodMesher.Result lod = null;
+            if (AccelerationConfig.BLAS_LOD_DISTANCE > 0) {
+                lod = LodMesher.build(address, quads, stride, AccelerationConfig.BLAS_LOD_CELL_SIZE);
+            }
+            map.put(pass.getKey(), new GeometryData(quads, hashParts(address, parts, vertices, stride), parts, lod));
         }
 
         if (!map.isEmpty()) {
@@ -35,4 +60,96 @@ public class SodiumResultAdapter {
             ebr.setAccelerationGeometryData(null);
         }
     }
+
+    private static GeometryPart part(long address, int[] quads, int quadCount, boolean opaque, int stride) {
+        QuadMerger.Result merged = null;
+        if (AccelerationConfig.BLAS_MERGE_QUADS && stride == QuadMerger.VERTEX_STRIDE) {
+            merged = QuadMerger.merge(address, quads, quadCount, stride);
+        }
+        return new GeometryPart(quads, quads == null ? quadCount : quads.length, opaque, merged);
+    }
+
+    //Splits the quads of a cutout pass into the ones whose texture is fully opaque, which dont need any hit shaders,
+    // and the ones that are alpha tested, a pass that is all one or the other stays a single part
+    private static void splitByOpacity(List<GeometryPart> parts, AtlasOpacity opacity, long address, int quads, int stride) {
+        int[] opaque = new int[quads];
+        int[] alphaTested = new int[quads];
+        int opaqueCount = 0, alphaTestedCount = 0;
+        for (int quad = 0; quad < quads; quad++) {
+            float u0 = Float.MAX_VALUE, v0 = Float.MAX_VALUE, u1 = -Float.MAX_VALUE, v1 = -Float.MAX_VALUE;
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long base = address + (long) (quad * 4 + vertex) * stride + TEXTURE_OFFSET;
+                float u = Short.toUnsignedInt(MemoryUtil.memGetShort(base)) * TEXTURE_SCALE;
+                float v = Short.toUnsignedInt(MemoryUtil.memGetShort(base + 2)) * TEXTURE_SCALE;
+                u0 = Math.min(u0, u);
+                v0 = Math.min(v0, v);
+                u1 = Math.max(u1, u);
+                v1 = Math.max(v1, v);
+            }
+            if (opacity.isOpaque(u0, v0, u1, v1)) {
+                opaque[opaqueCount++] = quad;
+            } else {
+                alphaTested[alphaTestedCount++] = quad;
+            }
+        }
+        if (opaqueCount == 0 || alphaTestedCount == 0) {
+            parts.add(part(address, null, quads, alphaTestedCount == 0, stride));
+            return;
+        }
+        parts.add(part(address, Arrays.copyOf(opaque, opaqueCount), quads, true, stride));
+        parts.add(part(address, Arrays.copyOf(alphaTested, alphaTestedCount), quads, false, stride));
+    }
+
+    //The opaque flag is part of the hash as it changes the blas, and so is the merge result of merged parts as it
+    // decides which primitive of the blas is which quad
+    private static long hashParts(long address, List<GeometryPart> parts, int vertices, int stride) {
+        long hash;
+        if (parts.size() == 1 && parts.get(0).quads() == null) {
+            hash = hashPositions(address, vertices, stride);
+            hash = parts.get(0).opaque() ? ~hash : hash;
+        } else {
+            hash = parts.size();
+            for (var part : parts) {
+                hash = mixPosition(hash, (long) part.quadCount() << 1 | (part.opaque() ? 1 : 0));
+                for (int i = 0; i < part.quadCount(); i++) {
+                    long quad = part.quads() == null ? i : part.quads()[i];
+                    for (int vertex = 0; vertex < 4; vertex++) {
+                        hash = mixPosition(hash, MemoryUtil.memGetLong(address + (quad * 4 + vertex) * stride) & 0xFFFF_FFFF_FFFFL);
+                    }
+                }
+            }
+        }
+        for (var part : parts) {
+            if (part.merged() != null) {
+                hash = QuadMerger.hash(hash, part.merged());
+            }
+        }
+        return hash;
+    }
+
+    //Hashes the 3 16 bit position components at the start of every vertex, the rest of the vertex doesnt affect the blas
+    private static long hashPositions(long address, int vertices, int stride) {
+        long hash = vertices;
+        for (int i = 0; i < vertices; i++) {
+            hash = mixPosition(hash, MemoryUtil.memGetLong(address + (long) i * stride) & 0xFFFF_FFFF_FFFFL);
+        }
+        return hash;
+    }
+
+    static long mixPosition(long hash, long position) {
+        return Long.rotateLeft((hash ^ position) * 0x9E3779B97F4A7C15L, 29);
+    }
+
+    //Combines the position hashes of all the passes of a section in the order they become blas geometries, the pass
+    // is part of the hash as it decides the geometry flags, with lod set the hash is of the lod geometry of the passes
+    // that have one
+    public static long sectionHash(Map<TerrainRenderPass, GeometryData> geometry, boolean lod) {
+        long hash = geometry.size();
+        for (var entry : geometry.entrySet()) {
+            hash = hash * 31 + entry.getKey().hashCode();
+            var data = entry.getValue();
+            hash = mixPosition(hash, lod && data.lod() != null ? data.lod().positionHash() : data.positionHash());
+        }
+        return hash;
+    }
 }
@@ -1,17 +1,23 @@
 package me.cortex.vulkanite.lib.base;
 
 import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkFormatProperties;
 import org.lwjgl.vulkan.VkPhysicalDeviceProperties2;
 import org.lwjgl.vulkan.VkPhysicalDeviceRayTracingPipelinePropertiesKHR;
 
 import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.KHRAccelerationStructure.VK_FORMAT_FEATURE_ACCELERATION_STRUCTURE_VERTEX_BUFFER_BIT_KHR;
+import static org.lwjgl.vulkan.VK10.vkGetPhysicalDeviceFormatProperties;
 import static org.lwjgl.vulkan.VK11.vkGetPhysicalDeviceProperties2;
 
 public class DeviceProperties {
     //Allocates with a calloc, TODO: add a destroy function for cleanup
 
     public final VkPhysicalDeviceRayTracingPipelinePropertiesKHR rtPipelineProperties;
+    private final VkDevice device;
+
     public DeviceProperties(VkDevice device) {
+        this.device = device;
         rtPipelineProperties = VkPhysicalDeviceRayTracingPipelinePropertiesKHR.calloc().sType$Default();
         try (var stack = stackPush()) {
             vkGetPhysicalDeviceProperties2(device.getPhysicalDevice(), VkPhysicalDeviceProperties2.calloc(stack)
@@ -19,4 +25,13 @@ public class DeviceProperties {
                     .pNext(rtPipelineProperties));
         }
     }
+
+    //Only a few float and snorm formats are required to be usable as acceleration structure build input
+    public boolean isAccelerationStructureVertexFormat(int format) {
+        try (var stack = stackPush()) {
+            var properties = VkFormatProperties.calloc(stack);
+            vkGetPhysicalDeviceFormatProperties(device.getPhysicalDevice(), format, properties);
+            return (properties.bufferFeatures() & VK_FORMAT_FEATURE_ACCELERATION_STRUCTURE_VERTEX_BUFFER_BIT_KHR) != 0;
+        }
+    }
 }
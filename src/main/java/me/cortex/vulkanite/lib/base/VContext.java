@@ -3,6 +3,7 @@ package me.cortex.vulkanite.lib.base;
 import me.cortex.vulkanite.lib.cmd.CommandManager;
 import me.cortex.vulkanite.lib.other.sync.SyncManager;
 import me.cortex.vulkanite.lib.memory.MemoryManager;
+import me.cortex.vulkanite.lib.memory.UploadStream;
 import org.lwjgl.vulkan.VkDebugUtilsObjectNameInfoEXT;
 import org.lwjgl.vulkan.VkDevice;
 
@@ -18,6 +19,7 @@ public class VContext {
     public final MemoryManager memory;
     public final SyncManager sync;
     public final CommandManager cmd;
+    public final UploadStream upload;
     public final DeviceProperties properties;
     public final boolean hasDebugUtils;
     public VContext(VkDevice device, int queueCount, boolean hasDeviceAddresses, boolean hasDebugUtils) {
@@ -25,6 +27,7 @@ public class VContext {
         memory = new MemoryManager(device, hasDeviceAddresses);
         sync = new SyncManager(device);
         cmd = new CommandManager(device, queueCount);
+        upload = new UploadStream(memory, cmd, 64L << 20);
         properties = new DeviceProperties(device);
         this.hasDebugUtils = hasDebugUtils;
     }
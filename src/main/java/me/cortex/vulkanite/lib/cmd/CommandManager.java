@@ -115,6 +115,10 @@ public class CommandManager {
         waitQueue.collect();
     }
 
+    public int queueCount() {
+        return queues.length;
+    }
+
     public long getQueueCurrentExecution(int queueId) {
         return queues[queueId].getCurrentExecution();
     }
@@ -127,7 +131,21 @@ public class CommandManager {
         if (queueId == 0) {
             RenderSystem.assertOnRenderThread();
         }
-        return queues[queueId].submit(cmdBuff, queues, waits, triggers, fence);
+        return queues[queueId].submit(cmdBuff, queues, waits, triggers, fence, -1, 0);
+    }
+
+    /**
+     * Submits with a timeline wait that only applies to this submission, unlike queueWaitForExeuction which is
+     * picked up by whichever submission to the queue comes next (possibly from another thread)
+     *
+     * @param waitQueueId   The queue whose timeline value will be waited for
+     * @param waitExecution The timeline value to wait for, 0 to not wait
+     */
+    public long submit(int queueId, final VRef<VCmdBuff> cmdBuff, int waitQueueId, long waitExecution) {
+        if (queueId == 0) {
+            RenderSystem.assertOnRenderThread();
+        }
+        return queues[queueId].submit(cmdBuff, queues, null, null, null, waitQueueId, waitExecution);
     }
 
     public void waitQueueIdle(int queue) {
@@ -144,6 +162,7 @@ public class CommandManager {
     private static class Queue {
         private record Submission(long t, VRef<VCmdBuff> ref) {}
 
+        public final int queueId;
         public final VkQueue queue;
         private final Int2LongArrayMap waitingFor = new Int2LongArrayMap();
         private final List<Submission> submitted = new ArrayList<>();
@@ -153,6 +172,7 @@ public class CommandManager {
         public AtomicLong completedTimestamp = new AtomicLong(0);
 
         public Queue(int queueId, VkDevice device) {
+            this.queueId = queueId;
             try (var stack = stackPush()) {
                 var pQ = stack.pointers(0);
                 vkGetDeviceQueue(device, 0, queueId, pQ);
@@ -230,15 +250,29 @@ public class CommandManager {
             }
         }
 
-        public long submit(final VRef<VCmdBuff> cmdBuff, Queue[] queues, List<VRef<VSemaphore>> waits, List<VRef<VSemaphore>> triggers, VFence fence) {
-            long t = timeline.getAndIncrement();
+        public long submit(final VRef<VCmdBuff> cmdBuff, Queue[] queues, List<VRef<VSemaphore>> waits, List<VRef<VSemaphore>> triggers, VFence fence,
+                           int extraWaitQueue, long extraWaitExecution) {
+            long t;
 
             synchronized (waitingFor) {
                 // We need to hold the lock until we have submitted cmdbuf into the queue
                 // Otherwise it might be possible that another thread will submit a cmdbuf without waiting for anything
                 // Queue submits has strong API ordering
-                var timelineWaitingEntries = waitingFor.int2LongEntrySet();
+                // The timeline value is also taken under the lock so that signals are in submission order
+                t = timeline.getAndIncrement();
+
+                // Copy before clearing, the entry set is a view of the map
+                var timelineWaits = new Int2LongArrayMap(waitingFor.size() + 1);
+                for (var entry : waitingFor.int2LongEntrySet()) {
+                    if (entry.getLongValue() != 0) {
+                        timelineWaits.put(entry.getIntKey(), entry.getLongValue());
+                    }
+                }
                 waitingFor.clear();
+                if (extraWaitExecution > 0) {
+                    timelineWaits.put(extraWaitQueue, Long.max(timelineWaits.getOrDefault(extraWaitQueue, 0), extraWaitExecution));
+                }
+                var timelineWaitingEntries = timelineWaits.int2LongEntrySet();
 
                 try (var stack = stackPush()) {
 
@@ -305,6 +339,8 @@ public class CommandManager {
                 }
             }
 
+            cmdBuff.get().onSubmit(queueId, t);
+
             synchronized (submitted) {
                 submitted.add(new Submission(t, cmdBuff.addRef()));
             }
@@ -4,7 +4,8 @@ import me.cortex.vulkanite.client.Vulkanite;
 import me.cortex.vulkanite.lib.base.VObject;
 import me.cortex.vulkanite.lib.base.VRef;
 import me.cortex.vulkanite.lib.descriptors.VDescriptorSet;
-import me.cortex.vulkanite.lib.memory.MemoryManager;
+import me.cortex.vulkanite.lib.memory.UploadRing;
+import me.cortex.vulkanite.lib.memory.UploadStream;
 import me.cortex.vulkanite.lib.memory.VAccelerationStructure;
 import me.cortex.vulkanite.lib.memory.VBuffer;
 import me.cortex.vulkanite.lib.memory.VImage;
@@ -17,7 +18,6 @@ import me.cortex.vulkanite.lib.pipeline.VRaytracePipeline;
 import org.lwjgl.vulkan.*;
 import org.lwjgl.system.MemoryUtil;
 
-import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.vulkan.KHRRayTracingPipeline.*;
 import static org.lwjgl.vulkan.KHRRayTracingPipeline.VK_PIPELINE_BIND_POINT_RAY_TRACING_KHR;
@@ -36,6 +36,10 @@ public class VCmdBuff extends VObject {
     @SuppressWarnings("FieldCanBeLocal")
     private final List<VRef<VObject>> refs = new ArrayList<>();
 
+    // Upload stream regions used by this command buffer, retired by the stream once this has executed
+    private UploadStream uploadStream;
+    private final List<UploadRing.Region> uploadRegions = new ArrayList<>();
+
     public void addBufferRef(final VRef<VBuffer> buffer) {
         refs.add(buffer.addRefGeneric());
     }
@@ -59,6 +63,21 @@ public class VCmdBuff extends VObject {
         refs.add(accelerationStructure.addRefGeneric());
     }
 
+    public void addUploadRegion(UploadStream stream, UploadRing.Region region) {
+        if (uploadStream != null && uploadStream != stream) {
+            throw new IllegalStateException("Command buffer already uses a different upload stream");
+        }
+        uploadStream = stream;
+        uploadRegions.add(region);
+    }
+
+    // Called by the command manager with the timeline value this command buffer was submitted with
+    public void onSubmit(int queueId, long execution) {
+        for (var region : uploadRegions) {
+            uploadStream.submitted(region, queueId, execution);
+        }
+    }
+
     protected VCmdBuff(VRef<VCommandPool> pool, VkCommandBuffer buff, int flags) {
         this.pool = pool;
         this.buffer = buff;
@@ -158,49 +177,31 @@ public class VCmdBuff extends VObject {
         addBufferRef(dest);
     }
 
-    public void encodeDataUpload(MemoryManager manager, long src, final VRef<VBuffer> dest, long destOffset, long size) {
-        VRef<VBuffer> staging = manager.createBuffer(size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, 0,
-                VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
-        staging.get().setDebugUtilsObjectName("Data Upload Host Staging");
-        long ptr = staging.get().map();
-        MemoryUtil.memCopy(src, ptr, size);
-        staging.get().unmap();
+    public void encodeDataUpload(UploadStream stream, long src, final VRef<VBuffer> dest, long destOffset, long size) {
+        var staging = stream.stage(this, src, size);
 
         try (var stack = stackPush()) {
             var copy = VkBufferCopy.calloc(1, stack);
-            copy.get(0).srcOffset(0).dstOffset(destOffset).size(size);
-            vkCmdCopyBuffer(buffer, staging.get().buffer(), dest.get().buffer(), copy);
+            copy.get(0).srcOffset(staging.offset()).dstOffset(destOffset).size(size);
+            vkCmdCopyBuffer(buffer, staging.buffer(), dest.get().buffer(), copy);
         }
 
-        addBufferRef(staging);
         addBufferRef(dest);
-
-        staging.close();
     }
 
-    public void encodeImageUpload(MemoryManager manager, long src, final VRef<VImage> dest, long srcSize, int destLayout) {
-        VRef<VBuffer> staging = manager.createBuffer(srcSize, VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, 0,
-                VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
-        staging.get().setDebugUtilsObjectName("Image Upload Host Staging");
-        long ptr = staging.get().map();
-        MemoryUtil.memCopy(src, ptr, srcSize);
-        staging.get().unmap();
+    public void encodeImageUpload(UploadStream stream, long src, final VRef<VImage> dest, long srcSize, int destLayout) {
+        var staging = stream.stage(this, src, srcSize);
 
         try (var stack = stackPush()) {
             var copy = VkBufferImageCopy.calloc(1, stack);
-            copy.get(0).bufferOffset(0).bufferImageHeight(0).bufferRowLength(0)
+            copy.get(0).bufferOffset(staging.offset()).bufferImageHeight(0).bufferRowLength(0)
                     .imageOffset(o -> o.set(0, 0, 0))
                     .imageExtent(extent -> extent.set(dest.get().width, dest.get().height, dest.get().depth))
                     .imageSubresource(s -> s.aspectMask(VK_IMAGE_ASPECT_COLOR_BIT).baseArrayLayer(0).layerCount(1).mipLevel(0));
-            vkCmdCopyBufferToImage(buffer, staging.get().buffer(), dest.get().image(), destLayout, copy);
+            vkCmdCopyBufferToImage(buffer, staging.buffer(), dest.get().image(), destLayout, copy);
         }
 
-        addBufferRef(staging);
         addImageRef(dest);
-
-        staging.close();
     }
 
     public void encodeMemoryBarrier() {
@@ -312,6 +313,11 @@ public class VCmdBuff extends VObject {
         vkFreeCommandBuffers(pool.get().device, pool.get().pool, buffer == null ? finalizedBuffer : buffer);
         refs.forEach(VRef::close);
         refs.clear();
+        // Either the command buffer has finished executing or it was never submitted, both mean the regions are free
+        for (var region : uploadRegions) {
+            uploadStream.release(region);
+        }
+        uploadRegions.clear();
     }
 
     public void setDebugUtilsObjectName(String name) {
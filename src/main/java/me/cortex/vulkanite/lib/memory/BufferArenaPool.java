@@ -0,0 +1,176 @@
+package me.cortex.vulkanite.lib.memory;
+
+import me.cortex.vulkanite.lib.base.VObject;
+import me.cortex.vulkanite.lib.base.VRef;
+import org.lwjgl.util.vma.VmaVirtualAllocationCreateInfo;
+import org.lwjgl.util.vma.VmaVirtualBlockCreateInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.cortex.vulkanite.lib.other.VUtil._CHECK_;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.util.vma.Vma.*;
+import static org.lwjgl.vulkan.VK10.VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT;
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+
+//Sub allocates ranges out of a few large device local buffers (arenas), the ranges are managed by vma virtual blocks
+// so that many small, frequently replaced buffers dont each need their own vma allocation and descriptor buffer
+//A request larger than an arena gets a dedicated buffer of its own that is freed together with the allocation, and
+// an arena whose last range is freed is destroyed unless it is the only one left, so the pool shrinks back after a spike
+public class BufferArenaPool {
+    public static class Arena {
+        private final VRef<VBuffer> buffer;
+        private final long virtualBlock;
+        private final long size;
+        private int allocations = 0;
+
+        private Arena(MemoryManager memoryManager, int usage, long size, long alignment, String name) {
+            this.size = size;
+            buffer = memoryManager.createBuffer(size, usage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, alignment, 0);
+            buffer.get().setDebugUtilsObjectName(name);
+            try (var stack = stackPush()) {
+                var pBlock = stack.mallocPointer(1);
+                _CHECK_(vmaCreateVirtualBlock(VmaVirtualBlockCreateInfo.calloc(stack).size(size), pBlock),
+                        "Failed to create virtual block");
+                virtualBlock = pBlock.get(0);
+            }
+        }
+
+        //Returns false if the arena has no range large enough
+        private boolean allocate(long size, long alignment, long[] out) {
+            try (var stack = stackPush()) {
+                var pAllocation = stack.mallocPointer(1);
+                var pOffset = stack.mallocLong(1);
+                int result = vmaVirtualAllocate(virtualBlock, VmaVirtualAllocationCreateInfo.calloc(stack)
+                        .size(size)
+                        .alignment(alignment), pAllocation, pOffset);
+                if (result != VK_SUCCESS) {
+                    return false;
+                }
+                out[0] = pAllocation.get(0);
+                out[1] = pOffset.get(0);
+                return true;
+            }
+        }
+
+        //Only called once every range has been freed, the gpu is done with the buffer by then as ranges are only
+        // freed once nothing references them anymore
+        private void destroy() {
+            vmaDestroyVirtualBlock(virtualBlock);
+            buffer.close();
+        }
+
+        public VRef<VBuffer> buffer() {
+            return buffer;
+        }
+    }
+
+    //A range (arena, offset, length) of an arena, the range is returned to the arena once all references are closed
+    //Dedicated allocations have no arena and own the whole of their buffer
+    public static class ArenaAllocation extends VObject {
+        private final BufferArenaPool pool;
+        private final Arena arena;
+        private final VRef<VBuffer> buffer;
+        private final long allocation;
+        public final long offset;
+        public final long size;
+
+        private ArenaAllocation(BufferArenaPool pool, Arena arena, VRef<VBuffer> buffer, long allocation, long offset, long size) {
+            this.pool = pool;
+            this.arena = arena;
+            this.buffer = buffer;
+            this.allocation = allocation;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public VRef<VBuffer> buffer() {
+            return buffer;
+        }
+
+        public long deviceAddress() {
+            return buffer.get().deviceAddress() + offset;
+        }
+
+        @Override
+        protected void free() {
+            pool.free(this);
+        }
+    }
+
+    private final MemoryManager memory;
+    private final int usage;
+    private final long arenaSize;
+    private final long alignment;
+    private final String name;
+    private final List<Arena> arenas = new ArrayList<>();
+    private long allocatedBytes = 0;
+    private long allocationCount = 0;
+    private long dedicatedBytes = 0;
+    private long dedicatedCount = 0;
+
+    public BufferArenaPool(MemoryManager memory, int usage, long arenaSize, long alignment, String name) {
+        this.memory = memory;
+        this.usage = usage;
+        this.arenaSize = arenaSize;
+        this.alignment = alignment;
+        this.name = name;
+    }
+
+    public synchronized VRef<ArenaAllocation> allocate(long size) {
+        if (size > arenaSize) {
+            var buffer = memory.createBuffer(size, usage, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, alignment, 0);
+            buffer.get().setDebugUtilsObjectName(name + " dedicated");
+            dedicatedBytes += size;
+            dedicatedCount++;
+            return new VRef<>(new ArenaAllocation(this, null, buffer, 0, 0, size));
+        }
+        long[] out = new long[2];
+        Arena arena = null;
+        for (var candidate : arenas) {
+            if (candidate.allocate(size, alignment, out)) {
+                arena = candidate;
+                break;
+            }
+        }
+        if (arena == null) {
+            arena = new Arena(memory, usage, arenaSize, alignment, name + " " + arenas.size());
+            arenas.add(arena);
+            if (!arena.allocate(size, alignment, out)) {
+                throw new IllegalStateException("Failed to allocate " + size + " bytes from a new arena");
+            }
+        }
+        arena.allocations++;
+        allocatedBytes += size;
+        allocationCount++;
+        return new VRef<>(new ArenaAllocation(this, arena, arena.buffer, out[0], out[1], size));
+    }
+
+    private synchronized void free(ArenaAllocation allocation) {
+        if (allocation.arena == null) {
+            allocation.buffer.close();
+            dedicatedBytes -= allocation.size;
+            dedicatedCount--;
+            return;
+        }
+        var arena = allocation.arena;
+        vmaVirtualFree(arena.virtualBlock, allocation.allocation);
+        allocatedBytes -= allocation.size;
+        allocationCount--;
+        if (--arena.allocations == 0 && arenas.size() > 1) {
+            arenas.remove(arena);
+            arena.destroy();
+        }
+    }
+
+    public synchronized String dumpStats() {
+        long reserved = 0;
+        for (var arena : arenas) {
+            reserved += arena.size;
+        }
+        return name + ": " + allocationCount + " allocations, " + (allocatedBytes >> 10) + "KB / "
+                + (reserved >> 10) + "KB in " + arenas.size() + " arenas, " + dedicatedCount + " dedicated ("
+                + (dedicatedBytes >> 10) + "KB)";
+    }
+}
@@ -0,0 +1,102 @@
+package me.cortex.vulkanite.lib.memory;
+
+import java.util.ArrayDeque;
+import java.util.function.IntToLongFunction;
+
+//Allocation and retirement bookkeeping of the UploadStream ring, does not touch the device at all
+// Regions are handed out linearly and retired in allocation order, a region is retired once the timeline value of the
+// submission that used it has been reached, or once it was released without ever being submitted
+// Offsets are tracked as monotonically increasing positions, the offset into the buffer is position % capacity
+public class UploadRing {
+    public static final class Region {
+        private final long start;
+        private final long end;
+        public final long offset;
+        public final long size;
+
+        private int queue = -1;
+        private long execution = 0;
+        private boolean released = false;
+
+        private Region(long start, long end, long offset, long size) {
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        private boolean isRetired(IntToLongFunction completedExecution) {
+            return released || (queue != -1 && completedExecution.applyAsLong(queue) >= execution);
+        }
+    }
+
+    private final long capacity;
+    private final ArrayDeque<Region> inUse = new ArrayDeque<>();
+    private long head = 0;
+    private long tail = 0;
+
+    public UploadRing(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    //Returns null if the ring does not currently have room for the allocation
+    // alignment must be a power of two that divides the capacity
+    public Region allocate(long size, long alignment) {
+        if (size <= 0 || size > capacity) {
+            return null;
+        }
+        long start = (head + alignment - 1) & -alignment;
+        if ((start % capacity) + size > capacity) {
+            //Doesnt fit before the end of the buffer, skip to the start of the next lap
+            start = ((head + capacity - 1) / capacity) * capacity;
+        }
+        long end = start + size;
+        if (end - tail > capacity) {
+            return null;
+        }
+        //The region spans from the previous head so that any alignment or wrap padding is reclaimed with it
+        var region = new Region(head, end, start % capacity, size);
+        head = end;
+        inUse.add(region);
+        return region;
+    }
+
+    public void submitted(Region region, int queue, long execution) {
+        region.queue = queue;
+        region.execution = execution;
+    }
+
+    //Marks a region as no longer used by the device, used when the region was never submitted or is known to be done
+    public void release(Region region) {
+        region.released = true;
+    }
+
+    //Retires regions from the tail for as long as they are done, returns the number of bytes reclaimed
+    public long reclaim(IntToLongFunction completedExecution) {
+        long before = tail;
+        Region region;
+        while ((region = inUse.peek()) != null && region.isRetired(completedExecution)) {
+            inUse.poll();
+            tail = region.end;
+        }
+        if (inUse.isEmpty()) {
+            tail = head;
+        }
+        return tail - before;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long used() {
+        return head - tail;
+    }
+
+    public int regionsInUse() {
+        return inUse.size();
+    }
+}
@@ -1,17 +1,105 @@
 package me.cortex.vulkanite.lib.memory;
 
-//Uses a host visible, client mapped buffer to stream data to the gpu, can use fence or something to signal once the
-// data is free
+//Uses a host visible, persistently mapped ring buffer to stream data to the gpu, regions of the ring are retired once
+// the timeline value of the command buffer that consumed them has been reached
+// Uploads that dont fit in the ring get their own overflow staging buffer which is freed with the command buffer
 
+import me.cortex.vulkanite.lib.base.VRef;
+import me.cortex.vulkanite.lib.cmd.CommandManager;
 import me.cortex.vulkanite.lib.cmd.VCmdBuff;
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.Arrays;
+
+import static org.lwjgl.util.vma.Vma.VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT;
+import static org.lwjgl.vulkan.VK10.*;
 
 public class UploadStream {
+    private static final long ALIGNMENT = 16;
+
+    //The command buffer passed to stage holds the reference keeping the staging buffer alive
+    public record Staging(long buffer, long offset) { }
+
+    private final MemoryManager memory;
+    private final CommandManager commands;
+    private final UploadRing ring;
+    private VRef<VBuffer> buffer;
+    private long mappedPtr;
 
-    public long malloc(long size) {
-        return -1;
+    private long overflowUploads;
+    private long overflowBytes;
+
+    public UploadStream(MemoryManager memory, CommandManager commands, long capacity) {
+        this.memory = memory;
+        this.commands = commands;
+        this.ring = new UploadRing(capacity);
     }
 
-    public void upload(long addr, VCmdBuff cmd) {
+    //Copies size bytes from src into staging memory that stays valid until cmd has finished executing
+    public synchronized Staging stage(VCmdBuff cmd, long src, long size) {
+        if (buffer == null) {
+            buffer = memory.createBuffer(ring.capacity(), VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, 0,
+                    VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
+            buffer.get().setDebugUtilsObjectName("Upload Stream Ring");
+            mappedPtr = buffer.get().map();
+        }
+
+        //Dont let a single upload eat most of the ring
+        UploadRing.Region region = null;
+        if (size <= ring.capacity() / 4) {
+            region = ring.allocate(size, ALIGNMENT);
+            if (region == null) {
+                reclaim();
+                region = ring.allocate(size, ALIGNMENT);
+            }
+        }
+
+        if (region == null) {
+            overflowUploads++;
+            overflowBytes += size;
+            VRef<VBuffer> staging = memory.createBuffer(size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT, 0,
+                    VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
+            staging.get().setDebugUtilsObjectName("Upload Stream Overflow");
+            long ptr = staging.get().map();
+            MemoryUtil.memCopy(src, ptr, size);
+            staging.get().unmap();
+            cmd.addBufferRef(staging);
+            long handle = staging.get().buffer();
+            staging.close();
+            return new Staging(handle, 0);
+        }
+
+        MemoryUtil.memCopy(src, mappedPtr + region.offset, size);
+        cmd.addUploadRegion(this, region);
+        cmd.addBufferRef(buffer);
+        return new Staging(buffer.get().buffer(), region.offset);
+    }
+
+    private void reclaim() {
+        long[] completed = new long[commands.queueCount()];
+        Arrays.fill(completed, -1);
+        ring.reclaim(queue -> {
+            if (completed[queue] == -1) {
+                completed[queue] = commands.getQueueCurrentExecution(queue);
+            }
+            return completed[queue];
+        });
+    }
+
+    //Called by the command buffer once it has been submitted
+    public synchronized void submitted(UploadRing.Region region, int queue, long execution) {
+        ring.submitted(region, queue, execution);
+    }
+
+    //Called by the command buffer when it is freed, by then it has either finished executing or was never submitted
+    public synchronized void release(UploadRing.Region region) {
+        ring.release(region);
+    }
 
+    public synchronized String dumpStats() {
+        return "Upload stream: " + (ring.used() >> 10) + "KB / " + (ring.capacity() >> 10) + "KB in use by "
+                + ring.regionsInUse() + " regions, " + overflowUploads + " overflow uploads (" + (overflowBytes >> 10) + "KB)";
     }
 }
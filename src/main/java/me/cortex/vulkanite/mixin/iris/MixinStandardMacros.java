@@ -1,5 +1,8 @@
 package me.cortex.vulkanite.mixin.iris;
 
+import me.cortex.vulkanite.acceleration.AccelerationConfig;
+import me.cortex.vulkanite.acceleration.BlasGranularity;
+import me.cortex.vulkanite.acceleration.GeometryRayFlags;
 import net.irisshaders.iris.gl.shader.StandardMacros;
 import net.irisshaders.iris.helpers.StringPair;
 import org.spongepowered.asm.mixin.Mixin;
@@ -15,5 +18,19 @@ public class MixinStandardMacros {
     @Inject(method = "createStandardEnvironmentDefines", at = @At(value = "INVOKE", target = "Lnet/irisshaders/iris/gl/shader/StandardMacros;define(Ljava/util/List;Ljava/lang/String;)V", ordinal = 0), locals = LocalCapture.CAPTURE_FAILHARD)
     private static void injectVulkaniteDefine(CallbackInfoReturnable<Iterable<StringPair>> cir, ArrayList<StringPair> defines) {
         defines.add(new StringPair("VULKANITE", " "));
+        if (AccelerationConfig.BLAS_MERGE_QUADS) {
+            defines.add(new StringPair("VULKANITE_MERGED_QUADS", " "));
+        }
+        if (AccelerationConfig.BLAS_GRANULARITY != BlasGranularity.SECTION) {
+            defines.add(new StringPair("VULKANITE_GROUPED_BLAS", " "));
+        }
+        //The entities are in their own tlas at binding 2 of the common set, the tlas at binding 1 only has the terrain
+        if (AccelerationConfig.TLAS_SPLIT) {
+            defines.add(new StringPair("VULKANITE_ENTITY_TLAS", " "));
+        }
+        //Instance masks of the tlas instances, to be used as the cull mask of traceRayEXT / rayQueryInitializeEXT
+        for (var flags : GeometryRayFlags.values()) {
+            defines.add(new StringPair("VULKANITE_MASK_" + flags.name(), Integer.toString(flags.mask())));
+        }
     }
 }
@@ -1,23 +1,37 @@
 package me.cortex.vulkanite.mixin.minecraft;
 
 import com.mojang.blaze3d.platform.GlStateManager;
+import me.cortex.vulkanite.acceleration.AccelerationConfig;
 import me.cortex.vulkanite.client.Vulkanite;
+import me.cortex.vulkanite.compat.AtlasOpacity;
 import me.cortex.vulkanite.compat.IVGImage;
 import me.cortex.vulkanite.lib.base.VRef;
 import net.minecraft.client.texture.AbstractTexture;
 import net.minecraft.client.texture.SpriteAtlasTexture;
+import net.minecraft.util.Identifier;
+import org.lwjgl.system.MemoryUtil;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
-import static org.lwjgl.opengl.GL11C.GL_RGBA8;
-import static org.lwjgl.opengl.GL11C.glDeleteTextures;
+import static org.lwjgl.opengl.GL11C.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 @Mixin(SpriteAtlasTexture.class)
 public abstract class MixinSpriteAtlasTexture extends AbstractTexture implements IVGImage  {
+    @Shadow public abstract Identifier getId();
+
+    @Unique private int atlasWidth;
+    @Unique private int atlasHeight;
+
     @Redirect(method = "upload", at = @At(value = "INVOKE", target = "Lcom/mojang/blaze3d/platform/TextureUtil;prepareImage(IIII)V"))
     private void redirect(int id, int maxLevel, int width, int height) {
+        atlasWidth = width;
+        atlasHeight = height;
         if (getVGImage() != null) {
             System.err.println("Vulkan image already allocated, releasing");
             setVGImage(null);
@@ -51,4 +65,22 @@ public abstract class MixinSpriteAtlasTexture extends AbstractTexture implements
             GlStateManager._texParameter(3553, 34049, 0.0F);
         }
     }
+
+    //Reads the block atlas back once all the sprites are uploaded so that chunk builds can tell which cutout quads are opaque
+    //This stalls the render thread on the whole atlas (level 0, width * height * 4 bytes) once per atlas upload, which
+    // is why the opacity split is opt in
+    @Inject(method = "upload", at = @At("TAIL"))
+    private void readBackOpacity(CallbackInfo ci) {
+        if (!AccelerationConfig.BLAS_OPACITY_SPLIT || !getId().equals(SpriteAtlasTexture.BLOCK_ATLAS_TEXTURE)) {
+            return;
+        }
+        var pixels = MemoryUtil.memAlloc(atlasWidth * atlasHeight * 4);
+        try {
+            GlStateManager._bindTexture(getGlId());
+            glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+            AtlasOpacity.setBlockAtlas(AtlasOpacity.fromRgba(pixels, atlasWidth, atlasHeight));
+        } finally {
+            MemoryUtil.memFree(pixels);
+        }
+    }
 }
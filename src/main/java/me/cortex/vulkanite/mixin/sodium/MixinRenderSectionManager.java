@@ -11,6 +11,7 @@ import me.jellysquid.mods.sodium.client.util.NativeBuffer;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
@@ -22,6 +23,9 @@ import java.util.ArrayList;
 public abstract class MixinRenderSectionManager {
     @Shadow @Final private Long2ReferenceMap<RenderSection> sectionByPosition;
 
+    //Outputs picked for upload at the head of processChunkBuildResults, handed to the ingest worker at its tail
+    @Unique private ArrayList<ChunkBuildOutput> pendingUploads;
+
     @Inject(method = "destroy", at = @At("HEAD"))
     private void onDestroy(CallbackInfo ci) {
         for (var section : sectionByPosition.values()) {
@@ -52,7 +56,27 @@ public abstract class MixinRenderSectionManager {
             }
         }
         if (!map.values().isEmpty()) {
-            Vulkanite.INSTANCE.upload(new ArrayList<>(map.values()));
+            //Sodium still uploads the outputs after this, so they are only marked here to keep it from deleting them
+            for (var output : map.values()) {
+                ((IAccelerationBuildResult) output).setUploadPending(true);
+            }
+            pendingUploads = new ArrayList<>(map.values());
+        }
+    }
+
+    @Inject(method = "processChunkBuildResults", at = @At("TAIL"))
+    private void uploadResults(ArrayList<ChunkBuildOutput> results, CallbackInfo ci) {
+        if (pendingUploads != null) {
+            //Sodium is done with the outputs, the worker deletes them once it has staged their vertex data
+            Vulkanite.INSTANCE.upload(pendingUploads);
+            pendingUploads = null;
+        }
+    }
+
+    @Redirect(method = "processChunkBuildResults", at = @At(value = "INVOKE", target = "Lme/jellysquid/mods/sodium/client/render/chunk/compile/ChunkBuildOutput;delete()V"))
+    private void deferUploadedDelete(ChunkBuildOutput instance) {
+        if (!((IAccelerationBuildResult) instance).isUploadPending()) {
+            instance.delete();
         }
     }
 }
@@ -15,6 +15,7 @@ import java.util.Map;
 public class MixinChunkBuildResult implements IAccelerationBuildResult {
     @Unique private Map<TerrainRenderPass, GeometryData> geometryMap;
     @Unique private ChunkVertexType vertexType;
+    @Unique private boolean uploadPending;
 
     @Override
     public void setAccelerationGeometryData(Map<TerrainRenderPass, GeometryData> map) {
@@ -35,4 +36,14 @@ public class MixinChunkBuildResult implements IAccelerationBuildResult {
     public void setVertexFormat(ChunkVertexType format) {
         vertexType = format;
     }
+
+    @Override
+    public void setUploadPending(boolean pending) {
+        uploadPending = pending;
+    }
+
+    @Override
+    public boolean isUploadPending() {
+        return uploadPending;
+    }
 }
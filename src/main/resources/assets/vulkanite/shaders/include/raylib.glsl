@@ -12,3 +12,34 @@ struct Vertex {
     uint8_t padB__;
 };
 
+
+#ifdef VULKANITE_MERGED_QUADS
+// The blas primitives are merged rectangles instead of the quads of the geometry buffer, quad q of the buffer
+// holds the range of quads covered by merged quad q (q = gl_PrimitiveID / 2) in the padding of its 4 vertices
+uint vulkaniteMergedFirst(Vertex v0, Vertex v1, Vertex v2, Vertex v3) {
+    return uint(v0.padA__) | uint(v1.padA__) << 8 | uint(v2.padA__) << 16 | uint(v3.padA__) << 24;
+}
+
+uint vulkaniteMergedCount(Vertex v0, Vertex v1, Vertex v2, Vertex v3) {
+    return uint(v0.padB__) | uint(v1.padB__) << 8 | uint(v2.padB__) << 16 | uint(v3.padB__) << 24;
+}
+
+// Whether the object space hit position lies on the axis aligned quad with the opposite corners v0 and v2, used to
+// pick the original quad out of the merged range
+bool vulkaniteQuadContains(Vertex v0, Vertex v2, vec3 position) {
+    vec3 a = vec3(v0.position.xyz) * (32.0 / 65536.0) - 8.0;
+    vec3 b = vec3(v2.position.xyz) * (32.0 / 65536.0) - 8.0;
+    vec3 epsilon = vec3(1.0 / 4096.0);
+    return all(greaterThanEqual(position, min(a, b) - epsilon)) && all(lessThanEqual(position, max(a, b) + epsilon));
+}
+#endif
+
+#ifdef VULKANITE_GROUPED_BLAS
+// A terrain instance can hold a whole group of sections, object space is then relative to the first section of the
+// group while the vertices stay relative to their own section, this gives the object space offset of the section of
+// the hit quad (v0 and v2 are its opposite corners, position is the object space hit position)
+vec3 vulkaniteSectionOffset(Vertex v0, Vertex v2, vec3 position) {
+    vec3 center = (vec3(v0.position.xyz) + vec3(v2.position.xyz)) * (16.0 / 65536.0) - 8.0;
+    return round((position - center) / 16.0) * 16.0;
+}
+#endif
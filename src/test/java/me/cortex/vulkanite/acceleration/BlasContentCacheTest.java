@@ -0,0 +1,60 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlasContentCacheTest {
+    @Test
+    void sharesEqualContent() {
+        var cache = new BlasContentCache<String, TrackedObject>();
+        var first = TrackedObject.create();
+        var cached = cache.share(1, 2, first);
+        assertSame(first, cached);
+        assertTrue(cache.contains(1, 2));
+        assertFalse(cache.contains(1, 3));
+        assertFalse(cache.contains(2, 2));
+
+        //The new structure is closed in favour of the cached one
+        var second = TrackedObject.create();
+        var secondObject = second.get();
+        var shared = cache.share(1, 2, second);
+        assertSame(first.get(), shared.get());
+        assertTrue(secondObject.isFreed());
+        assertSame(first.get(), cache.lookup(1, 2).get());
+        assertNull(cache.lookup(1, 3));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void dropsTheStructureWithItsLastUser() {
+        var cache = new BlasContentCache<String, TrackedObject>();
+        var structure = cache.share(1, 2, TrackedObject.create());
+        var object = structure.get();
+        structure.close();
+        cache.addUser(1, 2, "a");
+        cache.addUser(1, 2, "b");
+        cache.addUser(1, 2, "b");
+        assertEquals(2, cache.users());
+
+        cache.removeUser(1, 2, "a");
+        assertFalse(object.isFreed());
+        assertTrue(cache.contains(1, 2));
+        //Removing a user twice or one that was never added does nothing
+        cache.removeUser(1, 2, "a");
+        cache.removeUser(1, 2, "c");
+        assertEquals(1, cache.users());
+
+        cache.removeUser(1, 2, "b");
+        assertTrue(object.isFreed());
+        assertFalse(cache.contains(1, 2));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.users());
+    }
+
+    @Test
+    void usersNeedACachedStructure() {
+        var cache = new BlasContentCache<String, TrackedObject>();
+        assertThrows(IllegalStateException.class, () -> cache.addUser(1, 2, "a"));
+    }
+}
@@ -0,0 +1,82 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlasIngestBudgetTest {
+    @Test
+    void chargesUpToTheLimit() {
+        var budget = new BlasIngestBudget(100);
+        assertTrue(budget.tryAcquire(60));
+        assertTrue(budget.tryAcquire(40));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(40);
+        assertTrue(budget.tryAcquire(30));
+        assertEquals(90, budget.used());
+    }
+
+    @Test
+    void letsAnOversizedJobThroughWhenNothingIsCharged() {
+        var budget = new BlasIngestBudget(100);
+        assertTrue(budget.tryAcquire(500));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(500);
+        assertEquals(0, budget.used());
+    }
+
+    @Test
+    void rejectsReleasingMoreThanWasCharged() {
+        var budget = new BlasIngestBudget(100);
+        budget.tryAcquire(10);
+        assertThrows(IllegalStateException.class, () -> budget.release(20));
+    }
+
+    @Test
+    void waitsForAnotherThreadToRelease() throws InterruptedException {
+        var budget = new BlasIngestBudget(100);
+        budget.tryAcquire(100);
+        var releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            budget.release(100);
+        });
+        releaser.start();
+        //Polls far less often than the release happens, the release has to wake the wait up
+        budget.acquire(50, () -> {}, 10_000);
+        releaser.join();
+        assertEquals(50, budget.used());
+        assertEquals(1, budget.stalls());
+        assertTrue(budget.stallNanos() > 0);
+    }
+
+    //The waiting thread itself holds memory that is only freed by running whileWaiting, like the objects freed on the
+    // ingest worker that only its own collect frees
+    @Test
+    void runsWhileWaitingUntilTheBytesFit() {
+        var budget = new BlasIngestBudget(100);
+        budget.tryAcquire(100);
+        var runs = new AtomicInteger();
+        budget.acquire(50, () -> {
+            if (runs.incrementAndGet() == 3) {
+                budget.release(100);
+            }
+        }, 1);
+        assertTrue(runs.get() >= 3);
+        assertEquals(50, budget.used());
+    }
+
+    @Test
+    void doesNotStallWhenTheBytesFit() {
+        var budget = new BlasIngestBudget(100);
+        var runs = new AtomicInteger();
+        budget.acquire(50, runs::incrementAndGet, 1);
+        assertEquals(1, runs.get());
+        assertEquals(0, budget.stalls());
+    }
+}
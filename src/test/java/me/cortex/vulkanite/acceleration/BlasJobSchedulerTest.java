@@ -0,0 +1,92 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlasJobSchedulerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    private static String pollJob(BlasJobScheduler<String, String> scheduler) {
+        var entry = scheduler.poll();
+        return entry == null ? null : entry.job();
+    }
+
+    @Test
+    void pollsNearJobsFirst() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        scheduler.add("a", "far", 100, 0, 0, 0);
+        scheduler.add("b", "near", 10, 0, 0, 0);
+        scheduler.add("c", "middle", 0, -50, 0, 0);
+        assertEquals("near", pollJob(scheduler));
+        assertEquals("middle", pollJob(scheduler));
+        assertEquals("far", pollJob(scheduler));
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    void agingPromotesWaitingFarJobs() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        scheduler.add("a", "far", 1000, 0, 0, 0);
+        //Enqueued 20s later at 10 blocks, that is 10 + 64 * 20 = 1290 against the 1000 of the far job
+        scheduler.add("b", "near", 10, 0, 0, 20 * SECOND);
+        assertEquals("far", pollJob(scheduler));
+        assertEquals("near", pollJob(scheduler));
+    }
+
+    @Test
+    void reprioritisesOnceTheCameraHasMovedFarEnough() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        scheduler.add("a", "origin", 0, 0, 0, 0);
+        scheduler.add("b", "ahead", 9, 0, 0, 0);
+        //Closer to the second job now, but not moved far enough to reorder
+        scheduler.setCamera(5, 0, 0);
+        var first = scheduler.poll();
+        assertEquals("origin", first.job());
+        assertTrue(scheduler.requeue(first));
+
+        scheduler.setCamera(9, 0, 0);
+        assertEquals("ahead", pollJob(scheduler));
+        assertEquals("origin", pollJob(scheduler));
+    }
+
+    @Test
+    void newerJobSupersedesTheQueuedOne() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        assertNull(scheduler.add("a", "old", 10, 0, 0, 0));
+        scheduler.add("b", "other", 20, 0, 0, 0);
+        assertEquals("old", scheduler.add("a", "new", 30, 0, 0, 0));
+        assertEquals(2, scheduler.size());
+        //The cancelled entry is still the nearest in the heap but never comes out
+        assertEquals("other", pollJob(scheduler));
+        assertEquals("new", pollJob(scheduler));
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    void requeueKeepsTheEnqueueTimeUnlessSuperseded() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        scheduler.add("a", "first", 10, 0, 0, 5 * SECOND);
+        var entry = scheduler.poll();
+        assertTrue(scheduler.requeue(entry));
+        assertEquals(5 * SECOND, scheduler.poll().enqueueTime());
+
+        scheduler.add("a", "newer", 10, 0, 0, 6 * SECOND);
+        assertFalse(scheduler.requeue(entry));
+        assertEquals("newer", pollJob(scheduler));
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    void addIfAbsentKeepsTheQueuedJob() {
+        var scheduler = new BlasJobScheduler<String, String>(64, 8);
+        assertFalse(scheduler.contains("a"));
+        assertTrue(scheduler.addIfAbsent("a", "queued", 10, 0, 0, 0));
+        assertFalse(scheduler.addIfAbsent("a", "rebuild", 0, 0, 0, 0));
+        assertTrue(scheduler.contains("a"));
+        assertEquals("queued", pollJob(scheduler));
+        assertFalse(scheduler.contains("a"));
+        assertNull(scheduler.poll());
+    }
+}
@@ -0,0 +1,137 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.acceleration.BlasRefitPolicy.Decision;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlasRefitPolicyTest {
+    private static final long WINDOW = 1000;
+    private static final long[] LAYOUT = {16, 0};
+
+    //Builds the key as decided at the given time and returns the decision
+    private static Decision build(BlasRefitPolicy<String, TrackedObject> policy, String key, long[] layout, long now) {
+        var decision = policy.decide(key, layout, now);
+        if (decision == Decision.REFIT) {
+            policy.source(key).close();
+        }
+        var structure = TrackedObject.create();
+        policy.built(key, layout, decision, structure, now);
+        structure.close();
+        return decision;
+    }
+
+    @Test
+    void onlyKeysRebuiltWithinTheWindowBecomeUpdatable() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        assertEquals(Decision.BUILD, build(policy, "a", LAYOUT, 0));
+        assertEquals(Decision.BUILD_UPDATABLE, build(policy, "a", LAYOUT, 500));
+        assertEquals(Decision.REFIT, build(policy, "a", LAYOUT, 900));
+    }
+
+    @Test
+    void changedLayoutIsRebuilt() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        build(policy, "a", LAYOUT, 100);
+        assertEquals(Decision.BUILD_UPDATABLE, build(policy, "a", new long[]{17, 0}, 200));
+        assertEquals(Decision.REFIT, build(policy, "a", new long[]{17, 0}, 300));
+    }
+
+    @Test
+    void rebuildsAfterMaxRefitsInARow() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(2, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        build(policy, "a", LAYOUT, 100);
+        assertEquals(Decision.REFIT, build(policy, "a", LAYOUT, 200));
+        assertEquals(Decision.REFIT, build(policy, "a", LAYOUT, 300));
+        assertEquals(Decision.BUILD_UPDATABLE, build(policy, "a", LAYOUT, 400));
+        assertEquals(Decision.REFIT, build(policy, "a", LAYOUT, 500));
+    }
+
+    @Test
+    void disabledWithoutRefits() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(0, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        assertEquals(Decision.BUILD, build(policy, "a", LAYOUT, 100));
+        assertEquals(Decision.BUILD, build(policy, "a", LAYOUT, 200));
+    }
+
+    @Test
+    void keepsItsOwnReferenceToTheSource() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        var structure = TrackedObject.create();
+        var object = structure.get();
+        policy.built("a", LAYOUT, policy.decide("a", LAYOUT, 100), structure, 100);
+        structure.close();
+        assertFalse(object.isFreed());
+        try (var source = policy.source("a")) {
+            assertSame(object, source.get());
+        }
+
+        //A plain build of the key replaces the source
+        policy.built("a", LAYOUT, Decision.BUILD, TrackedObject.create(), 200);
+        assertTrue(object.isFreed());
+        assertThrows(IllegalStateException.class, () -> policy.source("a"));
+    }
+
+    @Test
+    void keysThatStoppedChangingReleaseTheirSource() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        var structure = TrackedObject.create();
+        var object = structure.get();
+        policy.built("a", LAYOUT, policy.decide("a", LAYOUT, 100), structure, 100);
+        structure.close();
+
+        assertEquals(Decision.BUILD, policy.decide("a", LAYOUT, 100 + WINDOW + 1));
+        assertTrue(object.isFreed());
+    }
+
+    @Test
+    void capsTheNumberOfSources() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 1);
+        build(policy, "a", LAYOUT, 0);
+        build(policy, "b", LAYOUT, 0);
+        build(policy, "a", LAYOUT, 100);
+        //The least recently built key loses its source once a second one would be kept
+        build(policy, "b", LAYOUT, 200);
+        assertEquals(Decision.BUILD_UPDATABLE, policy.decide("a", LAYOUT, 300));
+        assertEquals(Decision.REFIT, policy.decide("b", LAYOUT, 300));
+    }
+
+    @Test
+    void forgottenKeysStartOver() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        var structure = TrackedObject.create();
+        var object = structure.get();
+        policy.built("a", LAYOUT, policy.decide("a", LAYOUT, 100), structure, 100);
+        structure.close();
+
+        //Safe from other threads, only applied on the next decision
+        policy.forget("a");
+        assertFalse(object.isFreed());
+        assertEquals(Decision.BUILD, policy.decide("a", LAYOUT, 200));
+        assertTrue(object.isFreed());
+    }
+
+    @Test
+    void refitsReadFromTheCompactedCopy() {
+        var policy = new BlasRefitPolicy<String, TrackedObject>(8, WINDOW, 16);
+        build(policy, "a", LAYOUT, 0);
+        var structure = TrackedObject.create();
+        var object = structure.get();
+        policy.built("a", LAYOUT, policy.decide("a", LAYOUT, 100), structure, 100);
+        structure.close();
+
+        var compacted = TrackedObject.create();
+        policy.compacted("a", object, compacted);
+        compacted.close();
+        assertTrue(object.isFreed());
+        try (var source = policy.source("a")) {
+            assertSame(compacted.get(), source.get());
+        }
+    }
+}
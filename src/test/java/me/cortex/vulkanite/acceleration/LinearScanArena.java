@@ -0,0 +1,41 @@
+package me.cortex.vulkanite.acceleration;
+
+import java.util.BitSet;
+
+//The first fit BitSet arena TlasPointerArena replaced, kept as the reference the tests and benchmarks compare against
+class LinearScanArena {
+    private final BitSet vacant;
+    public int maxIndex = 0;
+
+    LinearScanArena(int size) {
+        size *= 3;
+        vacant = new BitSet(size);
+        vacant.set(0, size);
+    }
+
+    public int allocate(int count) {
+        int pos = vacant.nextSetBit(0);
+        outer:
+        while (pos != -1) {
+            for (int offset = 1; offset < count; offset++) {
+                if (!vacant.get(offset + pos)) {
+                    pos = vacant.nextSetBit(offset + pos + 1);
+                    continue outer;
+                }
+            }
+            break;
+        }
+        if (pos == -1) {
+            throw new IllegalStateException();
+        }
+        vacant.clear(pos, pos + count);
+        maxIndex = Math.max(maxIndex, pos + count);
+        return pos;
+    }
+
+    public void free(int pos, int count) {
+        vacant.set(pos, pos + count);
+
+        maxIndex = vacant.previousClearBit(maxIndex) + 1;
+    }
+}
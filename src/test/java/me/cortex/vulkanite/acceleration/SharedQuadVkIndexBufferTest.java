@@ -0,0 +1,61 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT16;
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT32;
+
+class SharedQuadVkIndexBufferTest {
+    private static final int[] QUAD = {0, 1, 2, 0, 2, 3};
+
+    private long ptr;
+
+    @AfterEach
+    void free() {
+        if (ptr != 0) {
+            MemoryUtil.nmemFree(ptr);
+            ptr = 0;
+        }
+    }
+
+    //Odd counts check the single quad written after the last pair of 16 bit quads
+    @Test
+    void generates16BitIndices() {
+        for (int quads : new int[]{0, 1, 2, 3, 1001, SharedQuadVkIndexBuffer.MAX_UINT16_QUADS}) {
+            long size = quads * 6L * Short.BYTES;
+            ptr = MemoryUtil.nmemAlloc(size + Short.BYTES);
+            //Guards against writing past the last index
+            MemoryUtil.memPutShort(ptr + size, (short) 0x5A5A);
+            SharedQuadVkIndexBuffer.genQuadIdxs(ptr, quads, VK_INDEX_TYPE_UINT16);
+            for (int quad = 0; quad < quads; quad++) {
+                for (int i = 0; i < 6; i++) {
+                    int index = Short.toUnsignedInt(MemoryUtil.memGetShort(ptr + (quad * 6L + i) * Short.BYTES));
+                    assertEquals(quad * 4 + QUAD[i], index, "Index " + i + " of quad " + quad + " of " + quads);
+                }
+            }
+            assertEquals((short) 0x5A5A, MemoryUtil.memGetShort(ptr + size));
+            free();
+        }
+    }
+
+    @Test
+    void generates32BitIndices() {
+        for (int quads : new int[]{0, 1, 3, 100_000}) {
+            long size = quads * 6L * Integer.BYTES;
+            ptr = MemoryUtil.nmemAlloc(size + Integer.BYTES);
+            MemoryUtil.memPutInt(ptr + size, 0x5A5A5A5A);
+            SharedQuadVkIndexBuffer.genQuadIdxs(ptr, quads, VK_INDEX_TYPE_UINT32);
+            for (int quad = 0; quad < quads; quad++) {
+                for (int i = 0; i < 6; i++) {
+                    assertEquals(quad * 4 + QUAD[i], MemoryUtil.memGetInt(ptr + (quad * 6L + i) * Integer.BYTES),
+                            "Index " + i + " of quad " + quad + " of " + quads);
+                }
+            }
+            assertEquals(0x5A5A5A5A, MemoryUtil.memGetInt(ptr + size));
+            free();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package me.cortex.vulkanite.acceleration;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TlasPointerArenaTest {
+    private record Range(int pos, int count) {
+    }
+
+    //Number of maximal runs of clear bits in [0, capacity)
+    private static int gaps(BitSet used, int capacity) {
+        int gaps = 0;
+        int pos = used.nextClearBit(0);
+        while (pos < capacity) {
+            gaps++;
+            pos = used.nextClearBit(used.nextSetBit(pos) == -1 ? capacity : used.nextSetBit(pos));
+        }
+        return gaps;
+    }
+
+    private static void allocate(TlasPointerArena arena, BitSet used, List<Range> live, int count) {
+        int pos = arena.allocate(count);
+        assertTrue(pos >= 0 && pos + count <= arena.capacity(), "Range out of bounds");
+        assertTrue(used.get(pos, pos + count).isEmpty(), "Range overlaps a live range");
+        used.set(pos, pos + count);
+        live.add(new Range(pos, count));
+    }
+
+    private static void checkInvariants(TlasPointerArena arena, BitSet used) {
+        assertEquals(used.length(), arena.maxIndex);
+        assertEquals(gaps(used, arena.capacity()), arena.freeRangeCount(), "Adjacent free ranges were not coalesced");
+    }
+
+    @Test
+    void randomChurnKeepsInvariants() {
+        var random = new Random(0x5EC7104L);
+        var arena = new TlasPointerArena(3000);
+        var reference = new LinearScanArena(3000);
+        var referenceLive = new ArrayList<Range>();
+        var referenceUsed = new BitSet();
+        var used = new BitSet();
+        var live = new ArrayList<Range>();
+        for (int i = 0; i < 100_000; i++) {
+            if (live.size() < 600 && (live.isEmpty() || random.nextInt(3) != 0)) {
+                int count = 1 + random.nextInt(12);
+                allocate(arena, used, live, count);
+                int referencePos = reference.allocate(count);
+                referenceUsed.set(referencePos, referencePos + count);
+                referenceLive.add(new Range(referencePos, count));
+            } else {
+                int index = random.nextInt(live.size());
+                var range = live.remove(index);
+                arena.free(range.pos, range.count);
+                used.clear(range.pos, range.pos + range.count);
+                var referenceRange = referenceLive.remove(index);
+                reference.free(referenceRange.pos, referenceRange.count);
+                referenceUsed.clear(referenceRange.pos, referenceRange.pos + referenceRange.count);
+            }
+            checkInvariants(arena, used);
+            //Both arenas see the same operations, the layouts differ (best fit vs first fit) but maxIndex means the
+            // same thing in both, the end of the highest live range
+            assertEquals(referenceUsed.length(), reference.maxIndex);
+            assertEquals(referenceUsed.cardinality(), used.cardinality());
+        }
+
+        for (var range : live) {
+            arena.free(range.pos, range.count);
+            used.clear(range.pos, range.pos + range.count);
+            checkInvariants(arena, used);
+        }
+        assertEquals(0, arena.maxIndex);
+        assertEquals(1, arena.freeRangeCount());
+        assertEquals(0, arena.allocate(arena.capacity()), "Fully freed arena was not coalesced into one range");
+    }
+
+    @Test
+    void picksTheBestFit() {
+        var arena = new TlasPointerArena(10);
+        int a = arena.allocate(4);
+        arena.allocate(1);
+        int c = arena.allocate(2);
+        arena.allocate(1);
+        arena.free(a, 4);
+        arena.free(c, 2);
+        //The 2 slot hole fits exactly, first fit would have taken the 4 slot one
+        assertEquals(c, arena.allocate(2));
+        assertEquals(a, arena.allocate(3));
+    }
+
+    @Test
+    void maxIndexFollowsTheHighestRange() {
+        var arena = new TlasPointerArena(10);
+        int a = arena.allocate(5);
+        int b = arena.allocate(5);
+        assertEquals(10, arena.maxIndex);
+        arena.free(b, 5);
+        assertEquals(5, arena.maxIndex);
+        arena.free(a, 5);
+        assertEquals(0, arena.maxIndex);
+    }
+
+    @Test
+    void failsWhenFull() {
+        var arena = new TlasPointerArena(2);
+        arena.allocate(arena.capacity());
+        assertThrows(IllegalStateException.class, () -> arena.allocate(1));
+    }
+
+    @Test
+    void rejectsDoubleFree() {
+        var arena = new TlasPointerArena(10);
+        int a = arena.allocate(4);
+        arena.allocate(4);
+        arena.free(a, 4);
+        assertThrows(IllegalStateException.class, () -> arena.free(a + 1, 2));
+    }
+
+    @Test
+    void rejectsFreeOverlappingALaterFreeRange() {
+        var arena = new TlasPointerArena(10);
+        int a = arena.allocate(4);
+        int b = arena.allocate(4);
+        arena.allocate(4);
+        arena.free(b, 4);
+        //Starts inside a live range but runs into the free one after it
+        assertThrows(IllegalStateException.class, () -> arena.free(a + 2, 4));
+        //The freed range of b and the end of the arena, the rejected free left nothing behind
+        assertEquals(2, arena.freeRangeCount());
+    }
+}
@@ -0,0 +1,28 @@
+package me.cortex.vulkanite.acceleration;
+
+import me.cortex.vulkanite.lib.base.VObject;
+import me.cortex.vulkanite.lib.base.VRef;
+import me.cortex.vulkanite.lib.base.VRegistry;
+
+//Stands in for a device object, records whether it was freed once all its references were closed
+class TrackedObject extends VObject {
+    private boolean freed = false;
+
+    static VRef<TrackedObject> create() {
+        return new VRef<>(new TrackedObject());
+    }
+
+    //Objects are only freed when the thread that created them collects
+    boolean isFreed() {
+        VRegistry.INSTANCE.threadLocalCollect();
+        return freed;
+    }
+
+    @Override
+    protected void free() {
+        if (freed) {
+            throw new IllegalStateException("Freed twice");
+        }
+        freed = true;
+    }
+}
@@ -0,0 +1,76 @@
+package me.cortex.vulkanite.compat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LodMesherTest {
+    private static final int STRIDE = QuadMerger.VERTEX_STRIDE;
+
+    private long mesh;
+
+    @AfterEach
+    void free() {
+        if (mesh != 0) {
+            MemoryUtil.nmemFree(mesh);
+            mesh = 0;
+        }
+    }
+
+    //The top faces of a one block thick floor covering the whole section, in sodiums encoding
+    private long floor() {
+        mesh = MemoryUtil.nmemCalloc(16 * 16 * 4L, STRIDE);
+        int quad = 0;
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                int[][] corners = {{x, z}, {x, z + 1}, {x + 1, z + 1}, {x + 1, z}};
+                for (int vertex = 0; vertex < 4; vertex++) {
+                    long base = mesh + (long) (quad * 4 + vertex) * STRIDE;
+                    MemoryUtil.memPutShort(base, (short) ((corners[vertex][0] + 8) * 2048));
+                    MemoryUtil.memPutShort(base + 2, (short) ((1 + 8) * 2048));
+                    MemoryUtil.memPutShort(base + 4, (short) ((corners[vertex][1] + 8) * 2048));
+                }
+                quad++;
+            }
+        }
+        return mesh;
+    }
+
+    @Test
+    void simplifiesFloor() {
+        var lod = LodMesher.build(floor(), 256, STRIDE, 4);
+        assertNotNull(lod);
+        //16 boxes with a top and bottom face each, and 4 sides along every edge of the section
+        assertEquals(16 * 2 + 4 * 4, lod.quadCount());
+        assertEquals(lod.quadCount() * 4 * STRIDE, lod.vertices().length);
+    }
+
+    //Hit shaders built with VULKANITE_MERGED_QUADS read the remap of every primitive, lod faces must cover themselves
+    @Test
+    void writesIdentityMergedRemap() {
+        var lod = LodMesher.build(floor(), 256, STRIDE, 4);
+        assertNotNull(lod);
+        var vertices = ByteBuffer.wrap(lod.vertices()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int quad = 0; quad < lod.quadCount(); quad++) {
+            int first = 0, count = 0;
+            for (int vertex = 0; vertex < 4; vertex++) {
+                int base = (quad * 4 + vertex) * STRIDE;
+                first |= Byte.toUnsignedInt(vertices.get(base + QuadMerger.PAD_A_OFFSET)) << (vertex * 8);
+                count |= Byte.toUnsignedInt(vertices.get(base + QuadMerger.PAD_B_OFFSET)) << (vertex * 8);
+            }
+            assertEquals(quad, first, "Lod face " + quad + " does not start its own range");
+            assertEquals(1, count, "Lod face " + quad + " does not cover exactly one quad");
+        }
+    }
+
+    @Test
+    void rejectsLodWithMoreQuads() {
+        mesh = MemoryUtil.nmemCalloc(4, STRIDE);
+        assertNull(LodMesher.build(mesh, 1, STRIDE, 4));
+    }
+}
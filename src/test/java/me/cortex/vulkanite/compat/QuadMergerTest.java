@@ -0,0 +1,216 @@
+package me.cortex.vulkanite.compat;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lwjgl.system.MemoryUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuadMergerTest {
+    private static final int STRIDE = QuadMerger.VERTEX_STRIDE;
+
+    //A quad of the synthetic mesh, on the plane perpendicular to axis at coordinate, spanning [u0, u1] x [v0, v1]
+    // along the other two axes (u = axis + 1, v = axis + 2)
+    private record Quad(int axis, int coordinate, int u0, int v0, int u1, int v1, boolean front, int sprite, int normal) {
+        Quad(int axis, int coordinate, int u0, int v0, int u1, int v1) {
+            this(axis, coordinate, u0, v0, u1, v1, true, 0x1234_5678, 0x7F0000);
+        }
+
+        long area() {
+            return (long) (u1 - u0) * (v1 - v0);
+        }
+    }
+
+    private long mesh;
+
+    @AfterEach
+    void free() {
+        if (mesh != 0) {
+            MemoryUtil.nmemFree(mesh);
+            mesh = 0;
+        }
+    }
+
+    private long write(List<Quad> quads) {
+        mesh = MemoryUtil.nmemCalloc(quads.size() * 4L, STRIDE);
+        for (int i = 0; i < quads.size(); i++) {
+            var quad = quads.get(i);
+            int[][] corners = {{quad.u0, quad.v0}, {quad.u1, quad.v0}, {quad.u1, quad.v1}, {quad.u0, quad.v1}};
+            for (int vertex = 0; vertex < 4; vertex++) {
+                var corner = corners[quad.front ? vertex : 3 - vertex];
+                int[] xyz = new int[3];
+                xyz[quad.axis] = quad.coordinate;
+                xyz[(quad.axis + 1) % 3] = corner[0];
+                xyz[(quad.axis + 2) % 3] = corner[1];
+                long base = mesh + (long) (i * 4 + vertex) * STRIDE;
+                for (int c = 0; c < 3; c++) {
+                    MemoryUtil.memPutShort(base + c * 2L, (short) xyz[c]);
+                }
+                MemoryUtil.memPutInt(base + 20, quad.sprite);
+                MemoryUtil.memPutInt(base + 28, quad.normal);
+            }
+        }
+        return mesh;
+    }
+
+    private QuadMerger.Result merge(List<Quad> quads) {
+        var result = QuadMerger.merge(write(quads), null, quads.size(), STRIDE);
+        checkCoverage(quads, result);
+        return result;
+    }
+
+    private static int coordinate(long packed, int axis) {
+        return (int) (packed >>> (axis * 16)) & 0xFFFF;
+    }
+
+    //Every original quad is covered by exactly one merged quad, and every merged rectangle covers exactly the area of
+    // its original quads
+    private static void checkCoverage(List<Quad> quads, QuadMerger.Result result) {
+        boolean[] seen = new boolean[quads.size()];
+        for (int quad : result.order()) {
+            assertFalse(seen[quad], "Quad " + quad + " is covered twice");
+            seen[quad] = true;
+        }
+        for (int quad = 0; quad < quads.size(); quad++) {
+            assertTrue(seen[quad], "Quad " + quad + " is not covered");
+        }
+
+        for (int i = 0; i < result.quadCount(); i++) {
+            int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+            int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            for (int vertex = 0; vertex < 4; vertex++) {
+                long packed = result.positions()[i * 4 + vertex];
+                for (int c = 0; c < 3; c++) {
+                    min[c] = Math.min(min[c], coordinate(packed, c));
+                    max[c] = Math.max(max[c], coordinate(packed, c));
+                }
+            }
+            long covered = 0;
+            for (int j = result.starts()[i]; j < result.starts()[i + 1]; j++) {
+                var quad = quads.get(result.order()[j]);
+                int u = (quad.axis + 1) % 3, v = (quad.axis + 2) % 3;
+                assertTrue(min[quad.axis] == quad.coordinate && max[quad.axis] == quad.coordinate, "Quad left its plane");
+                assertTrue(min[u] <= quad.u0 && quad.u1 <= max[u] && min[v] <= quad.v0 && quad.v1 <= max[v],
+                        "Quad lies outside of the merged rectangle");
+                covered += quad.area();
+            }
+            int axis = quads.get(result.order()[result.starts()[i]]).axis;
+            long area = (long) (max[(axis + 1) % 3] - min[(axis + 1) % 3]) * (max[(axis + 2) % 3] - min[(axis + 2) % 3]);
+            assertEquals(area, covered, "Merged rectangle " + i + " does not cover the same area as its quads");
+        }
+    }
+
+    @Test
+    void mergesCoplanarGrid() {
+        List<Quad> quads = new ArrayList<>();
+        for (int u = 0; u < 4; u++) {
+            for (int v = 0; v < 3; v++) {
+                quads.add(new Quad(1, 100, u * 16, v * 16, u * 16 + 16, v * 16 + 16));
+            }
+        }
+        var result = merge(quads);
+        assertEquals(1, result.quadCount());
+        assertEquals(12, result.starts()[1]);
+    }
+
+    @Test
+    void keepsDifferentPlanesApart() {
+        var result = merge(List.of(
+                new Quad(1, 100, 0, 0, 16, 16),
+                new Quad(1, 116, 16, 0, 32, 16),
+                new Quad(0, 100, 16, 0, 32, 16)));
+        assertEquals(3, result.quadCount());
+    }
+
+    @Test
+    void doesNotMergeDifferentTextures() {
+        var result = merge(List.of(
+                new Quad(2, 50, 0, 0, 16, 16, true, 0x0100_0100, 0x7F),
+                new Quad(2, 50, 16, 0, 32, 16, true, 0x0200_0100, 0x7F)));
+        assertEquals(2, result.quadCount());
+    }
+
+    @Test
+    void doesNotMergeDifferentNormals() {
+        var result = merge(List.of(
+                new Quad(2, 50, 0, 0, 16, 16, true, 0x0100_0100, 0x7F),
+                new Quad(2, 50, 16, 0, 32, 16, true, 0x0100_0100, 0x7F00)));
+        assertEquals(2, result.quadCount());
+    }
+
+    @Test
+    void doesNotMergeOppositeFacings() {
+        var result = merge(List.of(
+                new Quad(0, 8, 0, 0, 16, 16, true, 0, 0),
+                new Quad(0, 8, 16, 0, 32, 16, false, 0, 0)));
+        assertEquals(2, result.quadCount());
+    }
+
+    @Test
+    void onlyMergesWholeEdges() {
+        //The second quad is shorter along v, the union would not be a rectangle
+        var result = merge(List.of(
+                new Quad(1, 0, 0, 0, 16, 16),
+                new Quad(1, 0, 16, 0, 32, 8)));
+        assertEquals(2, result.quadCount());
+    }
+
+    @Test
+    void passesThroughUnalignedQuads() {
+        mesh = MemoryUtil.nmemCalloc(4, STRIDE);
+        int[][] corners = {{0, 0, 0}, {16, 0, 16}, {16, 16, 16}, {0, 16, 0}};
+        for (int vertex = 0; vertex < 4; vertex++) {
+            for (int c = 0; c < 3; c++) {
+                MemoryUtil.memPutShort(mesh + (long) vertex * STRIDE + c * 2L, (short) corners[vertex][c]);
+            }
+        }
+        var result = QuadMerger.merge(mesh, null, 1, STRIDE);
+        assertEquals(1, result.quadCount());
+        for (int vertex = 0; vertex < 4; vertex++) {
+            long packed = result.positions()[vertex];
+            for (int c = 0; c < 3; c++) {
+                assertEquals(corners[vertex][c], coordinate(packed, c));
+            }
+        }
+    }
+
+    @Test
+    void hashDependsOnMaterials() {
+        List<Quad> uniform = new ArrayList<>();
+        List<Quad> checkered = new ArrayList<>();
+        for (int u = 0; u < 4; u++) {
+            uniform.add(new Quad(2, 50, u * 16, 0, u * 16 + 16, 16, true, 0x0100_0100, 0x7F));
+            checkered.add(new Quad(2, 50, u * 16, 0, u * 16 + 16, 16, true, u % 2 == 0 ? 0x0100_0100 : 0x0200_0100, 0x7F));
+        }
+        long uniformHash = QuadMerger.hash(0, merge(uniform));
+        free();
+        assertEquals(uniformHash, QuadMerger.hash(0, merge(uniform)));
+        free();
+        //Same positions, but the quads are merged differently so the blas primitives map to other quads
+        assertNotEquals(uniformHash, QuadMerger.hash(0, merge(checkered)));
+    }
+
+    @Test
+    void randomMeshesKeepTheirArea() {
+        var random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            List<Quad> quads = new ArrayList<>();
+            for (int u = 0; u < 16; u++) {
+                for (int v = 0; v < 16; v++) {
+                    if (random.nextInt(4) != 0) {
+                        int axis = random.nextInt(2);
+                        quads.add(new Quad(axis, 64, u * 16, v * 16, u * 16 + 16, v * 16 + 16, random.nextInt(8) != 0,
+                                random.nextInt(3), 0x7F));
+                    }
+                }
+            }
+            var result = merge(quads);
+            assertTrue(result.quadCount() <= quads.size());
+            free();
+        }
+    }
+}
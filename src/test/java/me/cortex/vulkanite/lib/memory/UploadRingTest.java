@@ -0,0 +1,139 @@
+package me.cortex.vulkanite.lib.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.IntToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadRingTest {
+    private static final IntToLongFunction NOTHING_DONE = queue -> 0;
+
+    @Test
+    void wrapsAroundToTheStart() {
+        var ring = new UploadRing(1024);
+        var a = ring.allocate(400, 16);
+        var b = ring.allocate(400, 16);
+        assertEquals(0, a.offset);
+        assertEquals(400, b.offset);
+        ring.release(a);
+        assertEquals(400, ring.reclaim(NOTHING_DONE));
+
+        //Does not fit in the 224 bytes left before the end, so it starts the next lap and the tail end is padding
+        var c = ring.allocate(300, 16);
+        assertEquals(0, c.offset);
+        assertEquals(400 + 224 + 300, ring.used());
+
+        ring.release(b);
+        assertEquals(400, ring.reclaim(NOTHING_DONE));
+        assertEquals(224 + 300, ring.used());
+
+        //The padding belongs to the region after the wrap and is given back with it
+        ring.release(c);
+        assertEquals(224 + 300, ring.reclaim(NOTHING_DONE));
+        assertEquals(0, ring.used());
+    }
+
+    @Test
+    void alignsOffsets() {
+        var ring = new UploadRing(1024);
+        ring.allocate(3, 4);
+        var aligned = ring.allocate(8, 64);
+        assertEquals(64, aligned.offset);
+        assertEquals(72, ring.used());
+    }
+
+    @Test
+    void returnsNullWhenFull() {
+        var ring = new UploadRing(1024);
+        var a = ring.allocate(512, 16);
+        var b = ring.allocate(512, 16);
+        //Callers fall back to a dedicated staging buffer, a failed allocation must leave the ring untouched
+        assertNull(ring.allocate(1, 1));
+        assertEquals(1024, ring.used());
+        assertEquals(2, ring.regionsInUse());
+        assertNull(ring.allocate(2048, 16), "Larger than the ring");
+        assertNull(ring.allocate(0, 16));
+
+        ring.submitted(a, 0, 5);
+        ring.submitted(b, 0, 6);
+        assertEquals(0, ring.reclaim(queue -> 4));
+        assertNull(ring.allocate(1, 1));
+        assertEquals(512, ring.reclaim(queue -> 5));
+        assertEquals(0, ring.allocate(512, 16).offset);
+        assertNull(ring.allocate(1, 1));
+    }
+
+    @Test
+    void retiresInAllocationOrder() {
+        var ring = new UploadRing(1024);
+        var a = ring.allocate(100, 4);
+        var b = ring.allocate(100, 4);
+        var c = ring.allocate(100, 4);
+        ring.submitted(a, 0, 10);
+        ring.submitted(b, 1, 3);
+        ring.release(c);
+
+        //b and c are done but a is still in flight, nothing can be reclaimed past it
+        IntToLongFunction completed = queue -> queue == 0 ? 9 : 3;
+        assertEquals(0, ring.reclaim(completed));
+        assertEquals(3, ring.regionsInUse());
+
+        assertEquals(300, ring.reclaim(queue -> queue == 0 ? 10 : 3));
+        assertEquals(0, ring.used());
+        assertEquals(0, ring.regionsInUse());
+    }
+
+    @Test
+    void unsubmittedRegionsBlockUntilReleased() {
+        var ring = new UploadRing(1024);
+        var a = ring.allocate(100, 4);
+        var b = ring.allocate(100, 4);
+        ring.submitted(b, 0, 1);
+        assertEquals(0, ring.reclaim(queue -> Long.MAX_VALUE));
+        ring.release(a);
+        assertEquals(200, ring.reclaim(queue -> 1));
+    }
+
+    @Test
+    void randomTrafficNeverOverlaps() {
+        record Live(UploadRing.Region region, long execution) {
+        }
+        var random = new Random(4);
+        var ring = new UploadRing(4096);
+        var live = new ArrayList<Live>();
+        long execution = 0;
+        long completed = 0;
+        for (int i = 0; i < 100_000; i++) {
+            var region = ring.allocate(1 + random.nextInt(600), 1L << random.nextInt(7));
+            if (region != null) {
+                assertTrue(region.offset >= 0 && region.offset + region.size <= ring.capacity(), "Region out of bounds");
+                for (var other : live) {
+                    var o = other.region;
+                    assertTrue(region.offset + region.size <= o.offset || o.offset + o.size <= region.offset,
+                            "Region overlaps one still in use");
+                }
+                if (random.nextInt(8) == 0) {
+                    ring.release(region);
+                } else {
+                    ring.submitted(region, 0, ++execution);
+                    live.add(new Live(region, execution));
+                }
+            }
+            //The device completes submissions in order, at its own pace
+            if (random.nextInt(3) == 0) {
+                completed = Math.min(execution, completed + random.nextInt(3));
+            }
+            long done = completed;
+            ring.reclaim(queue -> done);
+            live.removeIf(l -> l.execution <= done);
+            assertTrue(ring.used() <= ring.capacity());
+        }
+        completed = execution;
+        long done = completed;
+        ring.reclaim(queue -> done);
+        assertEquals(0, ring.used());
+    }
+}